@@ -0,0 +1,204 @@
+package ru.animabot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Заглушка Bot API для нагрузочного стенда ({@link LoadTest}): http://127.0.0.1:port/bot&lt;token&gt;/&lt;method&gt;.
+ * getUpdates отдаёт апдейты из очереди (long polling), send* отвечают сообщением,
+ * getChatMember — «member», createChatInviteLink — постоянная ссылка, остальное — true.
+ * Каждый ответ задерживается на latencyMillis; send* с вероятностью rate429 получают 429 с retry_after=1.
+ * Время прихода исходящего сообщения в чат отмечается для ожиданий {@link #expect}.
+ */
+public class FakeBotApi implements AutoCloseable {
+
+    static final String INVITE_LINK = "https://t.me/+loadtest";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Pattern MULTIPART_CHAT_ID = Pattern.compile("name=\"chat_id\"[^\\r\\n]*\\r\\n(?:[^\\r\\n]+\\r\\n)*\\r\\n(-?\\d+)");
+
+    /** Ожидание сообщения в чат, содержащего marker; завершается System.nanoTime() прихода. */
+    private static final class Expectation {
+        final String marker;
+        final CompletableFuture<Long> arrived = new CompletableFuture<>();
+        Expectation(String marker) { this.marker = marker; }
+    }
+
+    private final HttpServer server;
+    private final long latencyMillis;
+    private final double rate429;
+    private final LinkedBlockingQueue<ObjectNode> updates = new LinkedBlockingQueue<>();
+    private final AtomicLong updateIds = new AtomicLong();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final Map<Long, Expectation> expected = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> calls = new ConcurrentSkipListMap<>();
+    private final LongAdder injected429 = new LongAdder();
+
+    public FakeBotApi(int port, long latencyMillis, double rate429) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.rate429 = rate429;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+    }
+
+    /** Значение для DefaultBotOptions.setBaseUrl (токен и метод дописывает библиотека). */
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+    }
+
+    /** Апдейт для следующего getUpdates; update_id проставляется здесь. */
+    public void push(ObjectNode update) {
+        updates.add(withUpdateId(update));
+    }
+
+    public ObjectNode withUpdateId(ObjectNode update) {
+        return update.put("update_id", updateIds.incrementAndGet());
+    }
+
+    /** Следующее исходящее сообщение в chatId, в теле запроса которого есть marker (ставить до отправки апдейта). */
+    public CompletableFuture<Long> expect(long chatId, String marker) {
+        Expectation e = new Expectation(marker);
+        expected.put(chatId, e);
+        return e.arrived;
+    }
+
+    public Map<String, LongAdder> calls() {
+        return calls;
+    }
+
+    public long injected429() {
+        return injected429.sum();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        long arrivedAt = System.nanoTime();
+        try {
+            String path = ex.getRequestURI().getPath();
+            String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase(Locale.ROOT);
+            byte[] raw = ex.getRequestBody().readAllBytes();
+            calls.computeIfAbsent(method, k -> new LongAdder()).increment();
+
+            if (method.equals("getupdates")) {
+                respond(ex, 200, ok(pollUpdates(raw)));
+                return;
+            }
+            if (latencyMillis > 0) Thread.sleep(latencyMillis);
+
+            String body = new String(raw, StandardCharsets.UTF_8);
+            if (method.startsWith("send") && ThreadLocalRandom.current().nextDouble() < rate429) {
+                injected429.increment();
+                ObjectNode err = MAPPER.createObjectNode().put("ok", false).put("error_code", 429)
+                        .put("description", "Too Many Requests: retry after 1");
+                err.putObject("parameters").put("retry_after", 1);
+                respond(ex, 429, err);
+                return;
+            }
+            long chatId = chatId(ex, raw, body);
+            if (method.startsWith("send")) arrived(chatId, body, arrivedAt);
+
+            switch (method) {
+                case "sendmessage": case "sendphoto": case "senddocument": case "sendvideo":
+                    respond(ex, 200, ok(message(chatId)));
+                    break;
+                case "getchatmember": {
+                    ObjectNode m = MAPPER.createObjectNode().put("status", "member");
+                    m.set("user", user(MAPPER.readTree(raw).path("user_id").asLong()));
+                    respond(ex, 200, ok(m));
+                    break;
+                }
+                case "createchatinvitelink": {
+                    ObjectNode link = MAPPER.createObjectNode().put("invite_link", INVITE_LINK)
+                            .put("creates_join_request", false).put("is_primary", false).put("is_revoked", false);
+                    link.set("creator", user(1));
+                    respond(ex, 200, ok(link));
+                    break;
+                }
+                default:
+                    // banChatMember, unbanChatMember, answerCallbackQuery, deleteWebhook, ...
+                    respond(ex, 200, MAPPER.createObjectNode().put("ok", true).put("result", true));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            respond(ex, 500, MAPPER.createObjectNode().put("ok", false).put("error_code", 500)
+                    .put("description", String.valueOf(e)));
+        }
+    }
+
+    private ArrayNode pollUpdates(byte[] raw) throws Exception {
+        JsonNode req = raw.length > 0 ? MAPPER.readTree(raw) : MAPPER.createObjectNode();
+        int limit = req.path("limit").asInt(100);
+        // ProdamusWebhookServer в том же процессе ограничивает время ответа HttpServer (maxRspTime) —
+        // держим long poll короче, библиотека просто повторит запрос
+        int timeout = Math.min(req.path("timeout").asInt(0), 5);
+        ArrayNode out = MAPPER.createArrayNode();
+        ObjectNode first = updates.poll(timeout, TimeUnit.SECONDS);
+        if (first == null) return out;
+        out.add(first);
+        ObjectNode next;
+        while (out.size() < limit && (next = updates.poll()) != null) out.add(next);
+        return out;
+    }
+
+    private void arrived(long chatId, String body, long arrivedAt) {
+        Expectation e = expected.get(chatId);
+        if (e != null && body.contains(e.marker) && expected.remove(chatId, e)) e.arrived.complete(arrivedAt);
+    }
+
+    private static long chatId(HttpExchange ex, byte[] raw, String body) throws IOException {
+        String ct = ex.getRequestHeaders().getFirst("Content-Type");
+        if (ct != null && ct.startsWith("multipart/")) {
+            Matcher m = MULTIPART_CHAT_ID.matcher(body);
+            return m.find() ? Long.parseLong(m.group(1)) : 0;
+        }
+        return raw.length > 0 ? MAPPER.readTree(raw).path("chat_id").asLong() : 0;
+    }
+
+    private ObjectNode message(long chatId) {
+        ObjectNode m = MAPPER.createObjectNode()
+                .put("message_id", messageIds.incrementAndGet())
+                .put("date", System.currentTimeMillis() / 1000);
+        m.putObject("chat").put("id", chatId).put("type", chatId < 0 ? "supergroup" : "private");
+        return m;
+    }
+
+    static ObjectNode user(long id) {
+        return MAPPER.createObjectNode().put("id", id).put("is_bot", false).put("first_name", "Load" + id);
+    }
+
+    private static ObjectNode ok(JsonNode result) {
+        ObjectNode r = MAPPER.createObjectNode().put("ok", true);
+        r.set("result", result);
+        return r;
+    }
+
+    private static void respond(HttpExchange ex, int code, JsonNode json) throws IOException {
+        byte[] bytes = MAPPER.writeValueAsBytes(json);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(bytes); }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,241 @@
+package ru.animabot;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Нагрузочный стенд: SoulWayBot против {@link FakeBotApi} на временной базе, без настоящего Telegram.
+ * Каждый синтетический пользователь проходит /start → OPENKW → CHECKSUB → MENU:TARIFFS, затем
+ * оплату: подписанный вебхук Prodamus. Задержка шага — от отправки апдейта до первого ответа
+ * бота в этот чат с ожидаемым содержимым (его приход в заглушку Bot API).
+ * Отправка ограничена SendScheduler (лимиты Telegram) — стенд меряет именно то, что увидит пользователь.
+ *
+ * Запуск (после mvn -B -Pbench -DskipTests package):
+ *   LOADTEST_USERS=500 java -cp target/ProfiShinaBot-1.0-SNAPSHOT-benchmarks.jar ru.animabot.LoadTest
+ *
+ * Параметры (env): LOADTEST_USERS (500), LOADTEST_CONCURRENCY (100), LOADTEST_API_LATENCY_MS (20),
+ * LOADTEST_429_RATE (0.01), LOADTEST_API_PORT (18081), LOADTEST_WEBHOOK_PORT (18082),
+ * LOADTEST_UPDATES = polling | webhook — как апдейты попадают в бота (getUpdates или POST на /webhook/telegram/...).
+ */
+public class LoadTest {
+
+    private static final String KEYWORD        = "LOADTEST";
+    private static final String REWARD         = "LOADTEST-REWARD";
+    private static final String PROVIDER_KEY   = "loadtest-prodamus-secret";
+    private static final String TG_SECRET      = "loadtest-webhook-secret";
+    private static final long   FIRST_USER_ID  = 5_000_000_000L;
+    private static final long   STEP_TIMEOUT_SECONDS = 60;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String[] STEPS = {"start", "openkw", "checksub", "tariffs", "prodamus-http", "prodamus-paid"};
+
+    /** Задержки одного шага, нс. */
+    private static final class Latencies {
+        private long[] values = new long[1024];
+        private int size;
+        private long timeouts;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = nanos;
+        }
+
+        synchronized void timeout() {
+            timeouts++;
+        }
+
+        synchronized String report(double wallSeconds) {
+            long[] v = Arrays.copyOf(values, size);
+            Arrays.sort(v);
+            return String.format(Locale.ROOT, "%8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                    size, timeouts, size / wallSeconds, ms(v, 0.50), ms(v, 0.99), ms(v, 0.999), size == 0 ? 0 : v[size - 1] / 1e6);
+        }
+
+        private static double ms(long[] sorted, double q) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)] / 1e6;
+        }
+    }
+
+    private final FakeBotApi api;
+    private final int webhookPort;
+    private final boolean viaWebhook;
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final Map<String, Latencies> stats = new LinkedHashMap<>();
+    private final AtomicLong callbackIds = new AtomicLong();
+
+    private LoadTest(FakeBotApi api, int webhookPort, boolean viaWebhook) {
+        this.api = api;
+        this.webhookPort = webhookPort;
+        this.viaWebhook = viaWebhook;
+        for (String s : STEPS) stats.put(s, new Latencies());
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        int users       = envInt("LOADTEST_USERS", 500);
+        int concurrency = envInt("LOADTEST_CONCURRENCY", 100);
+        int latency     = envInt("LOADTEST_API_LATENCY_MS", 20);
+        double rate429  = Double.parseDouble(System.getenv().getOrDefault("LOADTEST_429_RATE", "0.01"));
+        int apiPort     = envInt("LOADTEST_API_PORT", 18081);
+        int webPort     = envInt("LOADTEST_WEBHOOK_PORT", 18082);
+        boolean viaWebhook = "webhook".equalsIgnoreCase(System.getenv().getOrDefault("LOADTEST_UPDATES", "polling"));
+
+        File dbFile = Files.createTempFile("soulway-load", ".db").toFile();
+        FakeBotApi api = new FakeBotApi(apiPort, latency, rate429);
+        DefaultBotOptions options = SoulWayBot.defaultOptions();
+        options.setBaseUrl(api.baseUrl());
+        SoulWayBot bot = new SoulWayBot(options, dbFile.getAbsolutePath());
+
+        SQLiteManager db = bot.getDb();
+        db.upsertKeyword(new Keyword(KEYWORD, "LOADTEST-INTRO", REWARD, List.of())).join();
+        db.setSettings(Map.of("gift_keyword", KEYWORD, "group_id", "-1001000000000")).join();
+
+        ProdamusWebhookServer web = new ProdamusWebhookServer(bot, webPort, PROVIDER_KEY);
+        if (viaWebhook) web.addTelegramWebhook(TG_SECRET);
+        web.start();
+        if (!viaWebhook) new TelegramBotsApi(DefaultBotSession.class).registerBot(bot);
+
+        System.out.printf(Locale.ROOT, "load test: %d users, concurrency %d, api latency %d ms, 429 rate %.3f, updates via %s%n",
+                users, concurrency, latency, rate429, viaWebhook ? "webhook" : "getUpdates");
+        LoadTest test = new LoadTest(api, webPort, viaWebhook);
+        long t0 = System.nanoTime();
+        test.run(users, concurrency);
+        double wall = (System.nanoTime() - t0) / 1e9;
+
+        System.out.printf(Locale.ROOT, "%nwall %.1f s, %.1f flows/s%n", wall, users / wall);
+        System.out.printf("%-14s %8s %8s %9s %9s %9s %9s %9s%n", "step", "count", "timeout", "per_sec", "p50_ms", "p99_ms", "p999_ms", "max_ms");
+        for (Map.Entry<String, Latencies> e : test.stats.entrySet()) {
+            System.out.printf("%-14s %s%n", e.getKey(), e.getValue().report(wall));
+        }
+        System.out.println("\nBot API calls: " + api.calls() + ", injected 429: " + api.injected429());
+
+        // бот, базу и заглушку не останавливаем (long poll и фоновые записи ещё идут) — просто выходим;
+        // временные файлы базы удалятся при выходе
+        for (String suffix : new String[]{"", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).deleteOnExit();
+        System.exit(0);
+    }
+
+    private void run(int users, int concurrency) throws InterruptedException {
+        Semaphore active = new Semaphore(concurrency);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < users; i++) {
+            long uid = FIRST_USER_ID + i;
+            active.acquire();
+            executor.execute(() -> {
+                try { flow(uid); } finally { active.release(); }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private void flow(long uid) {
+        boolean ok = step("start", uid, message(uid, "/start"), "OPENKW:" + KEYWORD)
+                && step("openkw", uid, callback(uid, "OPENKW:" + KEYWORD), "CHECKSUB:" + KEYWORD)
+                && step("checksub", uid, callback(uid, "CHECKSUB:" + KEYWORD), REWARD)
+                && step("tariffs", uid, callback(uid, "MENU:TARIFFS"), "payform.ru");
+        if (ok) pay(uid);
+    }
+
+    /** Отправляет апдейт и ждёт ответ в чат с marker. false — не дождались (остальные шаги пропускаются). */
+    private boolean step(String name, long uid, ObjectNode update, String marker) {
+        CompletableFuture<Long> reply = api.expect(uid, marker);
+        long t0 = System.nanoTime();
+        try {
+            deliver(update);
+            stats.get(name).add(reply.get(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS) - t0);
+            return true;
+        } catch (Exception e) {
+            stats.get(name).timeout();
+            return false;
+        }
+    }
+
+    /** Оплата по токену из ссылки тарифа: подписанный вебхук, затем уведомление об оплате. */
+    private void pay(long uid) {
+        String token = SoulWayBot.buildOrderIdToken(uid, 30, System.getenv().getOrDefault("BOT_LINK_SECRET", ""));
+        String body = "order_id=load-" + uid + "&order_num=" + URLEncoder.encode(token, StandardCharsets.UTF_8) +
+                "&customer_extra=" + uid + "&sum=1299&payment_status=success";
+        CompletableFuture<Long> notified = api.expect(uid, FakeBotApi.INVITE_LINK);
+        long t0 = System.nanoTime();
+        try {
+            HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + webhookPort + "/webhook/prodamus"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .header("Sign", HmacSigner.forKey(PROVIDER_KEY).signHex(body))
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            HttpResponse<String> resp = http.send(req, HttpResponse.BodyHandlers.ofString());
+            if (resp.statusCode() != 200) throw new IllegalStateException("prodamus webhook: HTTP " + resp.statusCode());
+            stats.get("prodamus-http").add(System.nanoTime() - t0);
+        } catch (Exception e) {
+            stats.get("prodamus-http").timeout();
+            return;
+        }
+        try {
+            stats.get("prodamus-paid").add(notified.get(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS) - t0);
+        } catch (Exception e) {
+            stats.get("prodamus-paid").timeout();
+        }
+    }
+
+    private void deliver(ObjectNode update) throws Exception {
+        if (!viaWebhook) {
+            api.push(update);
+            return;
+        }
+        HttpRequest req = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + webhookPort + TelegramWebhookHandler.CONTEXT_PREFIX + TG_SECRET))
+                .header("Content-Type", "application/json")
+                .header(TelegramWebhookHandler.SECRET_HEADER, TG_SECRET)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(MAPPER.writeValueAsBytes(api.withUpdateId(update))))
+                .build();
+        HttpResponse<Void> resp = http.send(req, HttpResponse.BodyHandlers.discarding());
+        if (resp.statusCode() != 200) throw new IllegalStateException("telegram webhook: HTTP " + resp.statusCode());
+    }
+
+    private static ObjectNode message(long uid, String text) {
+        ObjectNode u = MAPPER.createObjectNode();
+        ObjectNode m = u.putObject("message");
+        fillMessage(m, uid).put("text", text);
+        if (text.startsWith("/")) {
+            m.putArray("entities").addObject().put("type", "bot_command").put("offset", 0).put("length", text.length());
+        }
+        return u;
+    }
+
+    private ObjectNode callback(long uid, String data) {
+        ObjectNode u = MAPPER.createObjectNode();
+        ObjectNode cb = u.putObject("callback_query");
+        cb.put("id", String.valueOf(callbackIds.incrementAndGet())).put("chat_instance", String.valueOf(uid)).put("data", data);
+        cb.set("from", FakeBotApi.user(uid));
+        fillMessage(cb.putObject("message"), uid);
+        return u;
+    }
+
+    private static ObjectNode fillMessage(ObjectNode m, long uid) {
+        m.put("message_id", 1).put("date", System.currentTimeMillis() / 1000);
+        m.set("from", FakeBotApi.user(uid));
+        m.putObject("chat").put("id", uid).put("type", "private");
+        return m;
+    }
+
+    private static int envInt(String name, int def) {
+        try { return Integer.parseInt(System.getenv().getOrDefault(name, String.valueOf(def)).trim()); }
+        catch (NumberFormatException e) { return def; }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.animabot;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Токен заказа swb:uid:days:hmac — строится на каждый показ тарифов, проверяется на каждом платеже.
+ * legacy* — прежняя реализация (Mac.getInstance + init на каждый вызов, hex через String.format).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OrderTokenBench {
+
+    private static final String SECRET = "bench-link-secret";
+
+    private String token;
+
+    @Setup
+    public void setup() {
+        token = SoulWayBot.buildOrderIdToken(123456789L, 30, SECRET);
+    }
+
+    @Benchmark
+    public String hmacHex() {
+        return SoulWayBot.hmacHex("123456789:30", SECRET);
+    }
+
+    @Benchmark
+    public String legacyHmacHex() throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        byte[] out = mac.doFinal("123456789:30".getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(out.length * 2);
+        for (byte b : out) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    @Benchmark
+    public String buildOrderIdToken() {
+        return SoulWayBot.buildOrderIdToken(123456789L, 30, SECRET);
+    }
+
+    @Benchmark
+    public long[] parseOrderIdToken() {
+        return SoulWayBot.parseOrderIdToken(token, SECRET);
+    }
+}
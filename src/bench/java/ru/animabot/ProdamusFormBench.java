@@ -0,0 +1,106 @@
+package ru.animabot;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор тела вебхука Prodamus и поиск тарифа по сумме/названию продукта.
+ * legacyParse — прежний путь: split по '&', URLDecoder на каждую пару, затем двойная декодировка полей.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProdamusFormBench {
+
+    private static final FormFields.Keys FIELDS = FormFields.keys("payment_status", "status", "order_id", "order_num",
+            "customer_extra", "sum", "products[0][price]", "products[0][name]", "event_id");
+
+    /** Похоже на реальный вебхук: ~30 полей, токен и название продукта закодированы повторно. */
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("date=2024-05-01T12%3A00%3A00%2B03%3A00&order_id=48123791&order_num=swb%253A123456789%253A30%253A")
+          .append("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+          .append("&domain=soulway.payform.ru&sum=1299.00&currency=rub&customer_phone=%2B79990000000")
+          .append("&customer_email=user%40example.com&customer_extra=123456789&payment_type=%D0%9A%D0%B0%D1%80%D1%82%D0%B0")
+          .append("&commission=3.5&commission_sum=45.47&attempt=1&callbackType=json&payment_status=success")
+          .append("&payment_status_description=%D0%A3%D1%81%D0%BF%D0%B5%D1%88%D0%BD%D0%B0%D1%8F+%D0%BE%D0%BF%D0%BB%D0%B0%D1%82%D0%B0")
+          .append("&products%5B0%5D%5Bname%5D=%25D0%25A3%25D1%2581%25D0%25BB%25D1%2583%25D0%25B3%25D0%25B8+%D0%B4%D0%BE%D1%81%D1%82%D1%83%D0%BF%D0%B0+1+%D0%BC%D0%B5%D1%81%D1%8F%D1%86")
+          .append("&products%5B0%5D%5Bprice%5D=1299.00&products%5B0%5D%5Bquantity%5D=1&products%5B0%5D%5Bsum%5D=1299.00");
+        for (int i = 0; i < 12; i++) sb.append("&utm_").append(i).append("=campaign-").append(i);
+        body = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void formFields(Blackhole bh) {
+        FormFields form = FormFields.parse(body, FIELDS);
+        bh.consume(form.get("payment_status"));
+        bh.consume(form.get("status"));
+        bh.consume(form.getDecoded("order_id"));
+        bh.consume(form.getDecoded("order_num"));
+        bh.consume(form.getDecoded("customer_extra"));
+        bh.consume(form.getDecoded("sum"));
+        bh.consume(form.getDecoded("products[0][price]"));
+        bh.consume(form.getDecoded("products[0][name]"));
+        bh.consume(form.getDecoded("event_id"));
+    }
+
+    @Benchmark
+    public void legacyParse(Blackhole bh) {
+        Map<String, Object> form = legacyParseForm(new String(body, StandardCharsets.UTF_8));
+        bh.consume(form.get("payment_status"));
+        bh.consume(form.get("status"));
+        bh.consume(doubleDecode(form.get("order_id")));
+        bh.consume(doubleDecode(form.get("order_num")));
+        bh.consume(doubleDecode(form.get("customer_extra")));
+        bh.consume(doubleDecode(form.get("sum")));
+        bh.consume(doubleDecode(form.get("products[0][price]")));
+        bh.consume(doubleDecode(form.get("products[0][name]")));
+        bh.consume(doubleDecode(form.get("event_id")));
+    }
+
+    @Benchmark
+    public Tariff tariffByPrice() {
+        return TariffLinkBench.TARIFFS.byPrice("3 599.00");
+    }
+
+    @Benchmark
+    public Tariff tariffByProductName() {
+        return TariffLinkBench.TARIFFS.byProductName("Услуги доступа к клубу Путь Души срок 12 месяцев");
+    }
+
+    private static Map<String, Object> legacyParseForm(String body) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        if (body == null || body.isBlank()) return map;
+        for (String pair : body.split("&")) {
+            int i = pair.indexOf('=');
+            if (i < 0) continue;
+            String k = URLDecoder.decode(pair.substring(0, i), StandardCharsets.UTF_8);
+            String v = URLDecoder.decode(pair.substring(i + 1), StandardCharsets.UTF_8);
+            map.put(k, v);
+        }
+        return map;
+    }
+
+    private static String doubleDecode(Object v) {
+        if (v == null) return null;
+        String once = urlDecodeSafe(String.valueOf(v));
+        return urlDecodeSafe(once);
+    }
+
+    private static String urlDecodeSafe(String s) {
+        try { return URLDecoder.decode(s, StandardCharsets.UTF_8); }
+        catch (Exception e) { return s; }
+    }
+}
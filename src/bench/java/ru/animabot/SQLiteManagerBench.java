@@ -0,0 +1,60 @@
+package ru.animabot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Точечные чтения и записи SQLiteManager на временной базе с USERS подписками.
+ * Запись меряется до коммита (join): это задержка, которую видит обработчик.
+ * Несколько потоков (-t) показывают, как писатель склеивает записи в одну транзакцию.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SQLiteManagerBench {
+
+    private static final int USERS = 10_000;
+
+    private File dbFile;
+    private SQLiteManager db;
+
+    @Setup
+    public void setup() throws Exception {
+        dbFile = Files.createTempFile("soulway-bench", ".db").toFile();
+        db = new SQLiteManager(dbFile.getAbsolutePath());
+        List<SQLiteManager.Grant> grants = new ArrayList<>(USERS);
+        for (int uid = 1; uid <= USERS; uid++) grants.add(SQLiteManager.Grant.days(uid, 30));
+        db.grantSubscriptions(grants).join();
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) new File(dbFile.getPath() + suffix).delete();
+    }
+
+    @Benchmark
+    public Long subscriptionExpiry() {
+        return db.getSubscriptionExpiry(ThreadLocalRandom.current().nextInt(1, USERS + 1));
+    }
+
+    @Benchmark
+    public Void grantSubscription() {
+        return db.grantSubscriptionMinutes(ThreadLocalRandom.current().nextInt(1, USERS + 1), 1).join();
+    }
+
+    @Benchmark
+    public long cursorRoundTrip() {
+        db.setCursor("bench", ThreadLocalRandom.current().nextLong()).join();
+        return db.getCursor("bench", -1);
+    }
+}
@@ -0,0 +1,82 @@
+package ru.animabot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рендер тарифов: цена из лейбла и ссылка оплаты с токеном заказа (три на каждый показ).
+ * buildProdamusLink — прежняя сборка ссылки через карту параметров, она же эталон для TariffCatalog;
+ * catalogLinks* — то же через TariffCatalog: повторный показ (из LRU) и новый пользователь (три HMAC).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TariffLinkBench {
+
+    /** Три тарифа, как после миграции v5 на чистой базе (их же использует ProdamusFormBench). */
+    static final TariffIndex TARIFFS = TariffIndex.of(List.of(
+            new Tariff(1, "1 МЕС • 1299 ₽", "Услуги доступа к клубу Путь Души срок 1 месяц",
+                    129900, 30, "https://soulway.payform.ru/4e9isVQ/"),
+            new Tariff(2, "3 МЕС • 3599 ₽", "Услуги доступа к клубу Путь Души срок 3 месяца",
+                    359900, 90, "https://soulway.payform.ru/en9it1j/"),
+            new Tariff(3, "12 МЕС • 12900 ₽", "Услуги доступа к клубу Путь Души срок 12 месяцев",
+                    1290000, 365, "https://soulway.payform.ru/kr9it4z/")));
+
+    private TariffCatalog catalog;
+
+    @Setup
+    public void setup() {
+        catalog = new TariffCatalog(TARIFFS, "bench-link-secret", 10_000);
+    }
+
+    @Benchmark
+    public int extractPriceRub() {
+        return SoulWayBot.extractPriceRub("12 МЕС • 12 900 ₽", 0);
+    }
+
+    @Benchmark
+    public String buildProdamusLink() {
+        return referenceLink("https://soulway.payform.ru/kr9it4z/", 123456789L, 365, "12900",
+                "Услуги доступа к клубу Путь Души срок 12 месяцев", "bench-link-secret");
+    }
+
+    /** Ссылка оплаты так, как её строил бот до TariffCatalog: LinkedHashMap параметров, кодируются только значения. */
+    static String referenceLink(String baseUrl, long uid, int days, String priceRub, String productName, String linkSecret) {
+        String base = (baseUrl == null || baseUrl.isBlank()) ? "https://soulway.payform.ru/" : baseUrl.trim();
+        Map<String, String> p = new LinkedHashMap<>();
+        p.put("do", "pay");
+        p.put("order_num", SoulWayBot.buildOrderIdToken(uid, days, linkSecret));
+        p.put("customer_extra", String.valueOf(uid));
+        p.put("products[0][price]", priceRub);
+        p.put("products[0][quantity]", "1");
+        p.put("products[0][name]", productName);
+        p.put("sum", priceRub);
+        StringBuilder sb = new StringBuilder(base);
+        boolean hasQ = base.contains("?");
+        for (Map.Entry<String, String> e : p.entrySet()) {
+            sb.append(hasQ ? '&' : '?'); hasQ = true;
+            sb.append(e.getKey()).append('=').append(URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8));
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public List<String> catalogLinksCached() {
+        return catalog.linksFor(123456789L);
+    }
+
+    @Benchmark
+    public List<String> catalogLinksNewUser() {
+        return catalog.linksFor(ThreadLocalRandom.current().nextLong(1_000_000_000L));
+    }
+}
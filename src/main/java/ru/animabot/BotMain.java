@@ -1,22 +1,47 @@
 package ru.animabot;
 
 import org.telegram.telegrambots.meta.TelegramBotsApi;
+import org.telegram.telegrambots.meta.api.methods.updates.SetWebhook;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 public class BotMain {
     public static void main(String[] args) throws Exception {
+        // Режим получения апдейтов: polling (по умолчанию) или webhook
+        boolean webhookMode = "webhook".equalsIgnoreCase(System.getenv().getOrDefault("TG_UPDATES_MODE", "polling"));
+
         // 1) Стартуем бота
-        TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
         SoulWayBot bot = new SoulWayBot();
-        botsApi.registerBot(bot);
+        if (!webhookMode) {
+            // registerBot сам снимает ранее установленный webhook
+            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+            botsApi.registerBot(bot);
+        }
         System.out.println("SoulWayBot started as @" + bot.getBotUsername());
+        // При остановке контейнера дописываем очередь записей в БД
+        Runtime.getRuntime().addShutdownHook(new Thread(bot.getDb()::close, "db-shutdown"));
 
-        // 2) Вебсервер для Prodamus
+        // 2) Вебсервер для Prodamus (и для Telegram в режиме webhook)
         int port = Integer.parseInt(System.getenv().getOrDefault("PRODAMUS_WEBHOOK_PORT", "8080"));
         String secret = System.getenv().getOrDefault("PRODAMUS_SECRET", "");
         ProdamusWebhookServer webhook = new ProdamusWebhookServer(bot, port, secret);
-        webhook.start();
+        if (webhookMode) {
+            String baseUrl = System.getenv().getOrDefault("TG_WEBHOOK_URL", "");     // публичный https-адрес сервера
+            String tgSecret = System.getenv().getOrDefault("TG_WEBHOOK_SECRET", "");
+            if (baseUrl.isBlank() || !TelegramWebhookHandler.isValidSecret(tgSecret)) {
+                throw new IllegalStateException("TG_UPDATES_MODE=webhook requires TG_WEBHOOK_URL and TG_WEBHOOK_SECRET ([A-Za-z0-9_-], 1-256 chars)");
+            }
+            String path = webhook.addTelegramWebhook(tgSecret);
+            webhook.start();
+            bot.execute(SetWebhook.builder()
+                    .url(baseUrl.replaceAll("/+$", "") + path)
+                    .secretToken(tgSecret)
+                    .allowedUpdates(bot.getOptions().getAllowedUpdates())
+                    .build());
+            System.out.println("Telegram webhook listening on port " + port + " at " + TelegramWebhookHandler.CONTEXT_PREFIX + "***");
+        } else {
+            webhook.start();
+        }
 
         System.out.println("Prodamus webhook listening on port " + port + " at /webhook/prodamus");
     }
-}
\ No newline at end of file
+}
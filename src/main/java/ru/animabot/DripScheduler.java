@@ -0,0 +1,131 @@
+package ru.animabot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Расписание drip-рассылки в памяти вместо опроса таблицы раз в 10 минут.
+ * При старте читает drip_campaigns целиком, дальше синхронизируется через
+ * {@link SQLiteManager.DripListener} (startOrResetDrip / updateDrip / deleteDrip).
+ * Поток-таймер спит ровно до ближайшего срока и отдаёт созревшие шаги пачкой обработчику.
+ * Если обработчик не перевёл шаг дальше и не удалил его (ошибка отправки) — повтор через RETRY_DELAY.
+ */
+public class DripScheduler implements SQLiteManager.DripListener, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DripScheduler.class);
+
+    private static final long RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final int  MAX_BATCH          = 500;
+
+    /** Срок в очереди; действителен, только пока он же лежит в current (иначе устарел — пропускаем). */
+    private static final class Due implements Delayed {
+        final SQLiteManager.Drip drip;
+        Due(SQLiteManager.Drip drip) { this.drip = drip; }
+
+        @Override public long getDelay(TimeUnit unit) {
+            return unit.convert(drip.nextAtMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override public int compareTo(Delayed o) {
+            return Long.compare(drip.nextAtMillis, ((Due) o).drip.nextAtMillis);
+        }
+    }
+
+    private final Consumer<List<SQLiteManager.Drip>> handler;
+    private final Map<Long, SQLiteManager.Drip> current = new ConcurrentHashMap<>();
+    private final DelayQueue<Due> queue = new DelayQueue<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread timer;
+    private volatile boolean closed;
+
+    public DripScheduler(SQLiteManager db, Consumer<List<SQLiteManager.Drip>> handler) {
+        this.handler = handler;
+        db.setDripListener(this);
+        for (SQLiteManager.Drip d : db.listDueDrips(Long.MAX_VALUE, Integer.MAX_VALUE)) {
+            if (current.putIfAbsent(d.userId, d) == null) queue.put(new Due(d));
+        }
+        LOG.info("drip scheduler loaded {} campaigns", current.size());
+        this.timer = new Thread(this::run, "drip-scheduler");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    @Override
+    public void dripSaved(SQLiteManager.Drip d) {
+        current.put(d.userId, d);
+        queue.put(new Due(d));
+    }
+
+    @Override
+    public void dripUpdated(SQLiteManager.Drip d) {
+        // UPDATE без строки ничего не меняет — и здесь не создаём
+        if (current.computeIfPresent(d.userId, (k, old) -> d) == d) queue.put(new Due(d));
+    }
+
+    @Override
+    public void dripDeleted(long userId) {
+        current.remove(userId);
+    }
+
+    /** Активные кампании (gauge). */
+    public int size() {
+        return current.size();
+    }
+
+    /** Кампании, срок которых уже наступил, но шаг ещё не обработан (gauge). */
+    public int overdue() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (SQLiteManager.Drip d : current.values()) if (d.nextAtMillis <= now) n++;
+        return n;
+    }
+
+    private void run() {
+        while (!closed) {
+            List<SQLiteManager.Drip> batch = new ArrayList<>();
+            try {
+                Due first = queue.take();
+                List<Due> due = new ArrayList<>();
+                due.add(first);
+                queue.drainTo(due, MAX_BATCH - 1);
+                for (Due x : due) {
+                    if (current.get(x.drip.userId) == x.drip) batch.add(x.drip);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!batch.isEmpty()) executor.execute(() -> fire(batch));
+        }
+    }
+
+    private void fire(List<SQLiteManager.Drip> batch) {
+        JfrEvents.SchedulerJob ev = JfrEvents.job("drips");
+        ev.items = batch.size();
+        try {
+            handler.accept(batch);
+        } catch (Exception e) {
+            ev.failed = true;
+            LOG.warn("drip batch failed", e);
+        }
+        ev.commit();
+        // не переведённые дальше шаги (ошибка отправки) — повторим позже, строка в БД остаётся «просроченной»
+        long retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+        for (SQLiteManager.Drip d : batch) {
+            SQLiteManager.Drip retry = new SQLiteManager.Drip(d.userId, retryAt, d.step);
+            if (current.replace(d.userId, d, retry)) queue.put(new Due(retry));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.interrupt();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,56 @@
+package ru.animabot;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш file_id Telegram для локальных материалов (PDF, фото, видео приветствия).
+ * Ключ — абсолютный путь + вид отправки (photo/document/video); запись действительна,
+ * пока у файла те же размер и mtime. Первый раз файл загружается, дальше шлём file_id.
+ */
+public class FileIdCache {
+
+    public static final String PHOTO = "photo";
+    public static final String DOCUMENT = "document";
+    public static final String VIDEO = "video";
+
+    private final SQLiteManager db;
+    private final Map<String, SQLiteManager.CachedFileId> byKey = new ConcurrentHashMap<>();
+
+    public FileIdCache(SQLiteManager db) {
+        this.db = db;
+        for (SQLiteManager.CachedFileId row : db.listCachedFileIds()) {
+            byKey.put(key(row.path, row.kind), row);
+        }
+    }
+
+    /** file_id для файла или null, если файл ещё не загружался либо изменился. */
+    public String lookup(File file, String kind) {
+        String path = file.getAbsolutePath();
+        SQLiteManager.CachedFileId row = byKey.get(key(path, kind));
+        if (row == null) return null;
+        if (row.size == file.length() && row.mtimeMillis == file.lastModified()) return row.fileId;
+        forget(file, kind); // файл поменяли — старый file_id указывает на прежнее содержимое
+        return null;
+    }
+
+    public void remember(File file, String kind, String fileId) {
+        if (fileId == null || fileId.isBlank()) return;
+        String path = file.getAbsolutePath();
+        SQLiteManager.CachedFileId row = new SQLiteManager.CachedFileId(
+                path, kind, file.length(), file.lastModified(), fileId);
+        SQLiteManager.CachedFileId prev = byKey.put(key(path, kind), row);
+        if (prev != null && prev.fileId.equals(fileId) && prev.size == row.size && prev.mtimeMillis == row.mtimeMillis) return;
+        db.saveCachedFileId(row);
+    }
+
+    public void forget(File file, String kind) {
+        String path = file.getAbsolutePath();
+        if (byKey.remove(key(path, kind)) != null) db.deleteCachedFileId(path, kind);
+    }
+
+    private static String key(String path, String kind) {
+        return kind + ':' + path;
+    }
+}
@@ -0,0 +1,172 @@
+package ru.animabot;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Разбор application/x-www-form-urlencoded за один проход по сырому byte[].
+ * Запоминаются только границы значений нужных ключей (ключи сравниваются с учётом %XX и '+'
+ * без выделения памяти); значение декодируется лишь при обращении к нему.
+ * Повторный ключ — побеждает последний, пара без '=' пропускается (как раньше в parseForm).
+ * Битая %-последовательность остаётся как есть, а не роняет весь запрос.
+ */
+final class FormFields {
+
+    /** Набор ключей, который нужен обработчику; готовится один раз. */
+    static final class Keys {
+        private final String[] names;
+        private final byte[][] bytes;
+
+        private Keys(String... names) {
+            this.names = names.clone();
+            this.bytes = new byte[names.length][];
+            for (int i = 0; i < names.length; i++) bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+
+        private int indexOf(String name) {
+            for (int i = 0; i < names.length; i++) if (names[i].equals(name)) return i;
+            throw new IllegalArgumentException("key was not requested: " + name);
+        }
+    }
+
+    static Keys keys(String... names) {
+        return new Keys(names);
+    }
+
+    private final byte[] raw;
+    private final Keys keys;
+    private final int[] starts;
+    private final int[] ends;
+
+    private FormFields(byte[] raw, Keys keys) {
+        this.raw = raw;
+        this.keys = keys;
+        this.starts = new int[keys.names.length];
+        this.ends = new int[keys.names.length];
+        Arrays.fill(starts, -1);
+    }
+
+    static FormFields parse(byte[] raw, Keys keys) {
+        FormFields f = new FormFields(raw, keys);
+        int n = raw.length;
+        int pairStart = 0;
+        int eq = -1;
+        for (int i = 0; i <= n; i++) {
+            byte b = i < n ? raw[i] : (byte) '&';
+            if (b == '=' && eq < 0) {
+                eq = i;
+            } else if (b == '&') {
+                if (eq >= 0) f.match(pairStart, eq, i);
+                pairStart = i + 1;
+                eq = -1;
+            }
+        }
+        return f;
+    }
+
+    private void match(int keyStart, int keyEnd, int valueEnd) {
+        byte[][] wanted = keys.bytes;
+        for (int k = 0; k < wanted.length; k++) {
+            if (keyEquals(raw, keyStart, keyEnd, wanted[k])) {
+                starts[k] = keyEnd + 1;
+                ends[k] = valueEnd;
+                return;
+            }
+        }
+    }
+
+    /** Значение, декодированное один раз (как URLDecoder); null — ключа нет. */
+    String get(String key) {
+        int k = keys.indexOf(key);
+        return starts[k] < 0 ? null : decode(raw, starts[k], ends[k]);
+    }
+
+    /**
+     * Значение, декодированное до трёх раз: Prodamus часто кодирует поля повторно.
+     * Повторная декодировка выполняется, только если в строке ещё есть '%' или '+'.
+     */
+    String getDecoded(String key) {
+        String v = get(key);
+        if (v == null) return null;
+        return decodeAgain(decodeAgain(v));
+    }
+
+    /** Все пары формы (для диагностики в логах). */
+    @Override
+    public String toString() {
+        Map<String, String> all = new LinkedHashMap<>();
+        int n = raw.length;
+        int pairStart = 0;
+        int eq = -1;
+        for (int i = 0; i <= n; i++) {
+            byte b = i < n ? raw[i] : (byte) '&';
+            if (b == '=' && eq < 0) {
+                eq = i;
+            } else if (b == '&') {
+                if (eq >= 0) all.put(decode(raw, pairStart, eq), decode(raw, eq + 1, i));
+                pairStart = i + 1;
+                eq = -1;
+            }
+        }
+        return all.toString();
+    }
+
+    private static boolean keyEquals(byte[] raw, int s, int e, byte[] expected) {
+        int j = 0;
+        int p = s;
+        while (p < e) {
+            if (j == expected.length) return false;
+            byte b = raw[p];
+            if (b == '+') {
+                b = ' ';
+                p++;
+            } else if (b == '%' && p + 2 < e && hex(raw[p + 1]) >= 0 && hex(raw[p + 2]) >= 0) {
+                b = (byte) ((hex(raw[p + 1]) << 4) | hex(raw[p + 2]));
+                p += 3;
+            } else {
+                p++;
+            }
+            if (b != expected[j++]) return false;
+        }
+        return j == expected.length;
+    }
+
+    private static String decode(byte[] raw, int s, int e) {
+        int p = s;
+        while (p < e && raw[p] != '%' && raw[p] != '+') p++;
+        if (p == e) return new String(raw, s, e - s, StandardCharsets.UTF_8); // нечего декодировать
+        byte[] out = new byte[e - s];
+        int len = p - s;
+        System.arraycopy(raw, s, out, 0, len);
+        while (p < e) {
+            byte b = raw[p];
+            if (b == '+') {
+                out[len++] = ' ';
+                p++;
+            } else if (b == '%' && p + 2 < e && hex(raw[p + 1]) >= 0 && hex(raw[p + 2]) >= 0) {
+                out[len++] = (byte) ((hex(raw[p + 1]) << 4) | hex(raw[p + 2]));
+                p += 3;
+            } else {
+                out[len++] = b;
+                p++;
+            }
+        }
+        return new String(out, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private static String decodeAgain(String s) {
+        if (s.indexOf('%') < 0 && s.indexOf('+') < 0) return s;
+        try { return URLDecoder.decode(s, StandardCharsets.UTF_8); }
+        catch (Exception e) { return s; }
+    }
+
+    private static int hex(byte b) {
+        if (b >= '0' && b <= '9') return b - '0';
+        if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+        if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,151 @@
+package ru.animabot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.concurrent.*;
+
+/**
+ * Выдача оплаченного доступа вне HTTP-запроса вебхука.
+ * Вебхук только записывает задание в fulfillment_jobs (вместе с отметкой идемпотентности) и сразу отвечает 200.
+ * Здесь задание выполняется: продление подписки (один раз, флаг granted) и уведомление пользователя.
+ * При сбое Telegram — повтор с экспоненциальной паузой; незавершённые задания подхватываются после рестарта.
+ */
+public class FulfillmentWorker implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FulfillmentWorker.class);
+
+    private static final int  WORKERS            = 8;
+    private static final int  MAX_ATTEMPTS       = 50;
+    private static final long BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_BACKOFF_MILLIS  = TimeUnit.HOURS.toMillis(1);
+
+    /** Уведомление пользователя; подписка к этому моменту уже продлена. Исключение — повторить позже. */
+    public interface Delivery {
+        void deliver(SQLiteManager.FulfillmentJob job) throws Exception;
+    }
+
+    private static final class Pending implements Delayed {
+        final SQLiteManager.FulfillmentJob job;
+        Pending(SQLiteManager.FulfillmentJob job) { this.job = job; }
+
+        @Override public long getDelay(TimeUnit unit) {
+            return unit.convert(job.nextAttemptAtMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override public int compareTo(Delayed o) {
+            return Long.compare(job.nextAttemptAtMillis, ((Pending) o).job.nextAttemptAtMillis);
+        }
+    }
+
+    private final SQLiteManager db;
+    private final IdempotencyStore idempotency;
+    private final Delivery delivery;
+    private final DelayQueue<Pending> queue = new DelayQueue<>();
+    private final Semaphore permits = new Semaphore(WORKERS);
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    public FulfillmentWorker(SQLiteManager db, IdempotencyStore idempotency, Delivery delivery) {
+        this.db = db;
+        this.idempotency = idempotency;
+        this.delivery = delivery;
+        for (SQLiteManager.FulfillmentJob job : db.listPendingFulfillments()) queue.put(new Pending(job));
+        if (!queue.isEmpty()) LOG.info("fulfillment: {} unfinished jobs resumed", queue.size());
+        this.dispatcher = new Thread(this::run, "fulfillment-worker");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Записывает задание (и отметку provider/eventId) и ставит его в работу.
+     * false — событие уже обрабатывалось (недавний повтор отсекается без БД); исключение — задание не сохранено.
+     */
+    public CompletableFuture<Boolean> enqueue(String provider, String eventId, long userId, int days, int minutes) {
+        JfrEvents.WebhookStage stage = JfrEvents.stage(provider, "idempotency");
+        boolean known = idempotency.isKnown(provider, eventId);
+        stage.commit();
+        if (known) return CompletableFuture.completedFuture(false);
+        JfrEvents.WebhookStage fulfill = JfrEvents.stage(provider, "fulfill");
+        return db.enqueueFulfillment(provider, eventId, userId, days, minutes).thenApply(job -> {
+            fulfill.commit();
+            idempotency.remember(provider, eventId);
+            if (job == null) return false;
+            queue.put(new Pending(job));
+            return true;
+        });
+    }
+
+    /** Задания, ожидающие выполнения или повтора (gauge). */
+    public int pending() {
+        return queue.size();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                SQLiteManager.FulfillmentJob job = queue.take().job;
+                permits.acquire();
+                executor.execute(() -> {
+                    try { process(job); } finally { permits.release(); }
+                });
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private void process(SQLiteManager.FulfillmentJob job) {
+        JfrEvents.SchedulerJob ev = JfrEvents.job("fulfillment");
+        ev.items = 1;
+        try {
+            db.grantFulfillment(job).join();
+            delivery.deliver(job);
+            db.completeFulfillment(job.id, null);
+            LOG.info("fulfillment #{} done: uid={}, days={}, minutes={}", job.id, job.userId, job.days, job.minutes);
+        } catch (Exception e) {
+            ev.failed = true;
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            String error = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+            int attempts = job.attempts + 1;
+            if (isPermanent(cause)) {
+                // пользователь заблокировал бота и т.п. — доступ выдан, уведомить нельзя
+                LOG.warn("fulfillment #{} for uid={}: notification impossible ({})", job.id, job.userId, error);
+                db.completeFulfillment(job.id, error);
+            } else if (attempts >= MAX_ATTEMPTS) {
+                LOG.error("fulfillment #{} for uid={} gave up after {} attempts: {}", job.id, job.userId, attempts, error);
+                db.completeFulfillment(job.id, "gave up: " + error);
+            } else {
+                long pause = backoff(attempts);
+                long next = System.currentTimeMillis() + pause;
+                LOG.warn("fulfillment #{} for uid={} failed (attempt {}), retry in {} s: {}",
+                        job.id, job.userId, attempts, pause / 1000, error);
+                db.retryFulfillment(job.id, attempts, next, error);
+                queue.put(new Pending(new SQLiteManager.FulfillmentJob(job.id, job.userId, job.days, job.minutes, attempts, next)));
+            }
+        } finally {
+            ev.commit();
+        }
+    }
+
+    private static long backoff(int attempts) {
+        long pause = BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20);
+        return Math.min(pause, MAX_BACKOFF_MILLIS);
+    }
+
+    /** 400/403 от Telegram (чат не найден, бот заблокирован) повтором не исправить. */
+    private static boolean isPermanent(Throwable e) {
+        if (!(e instanceof TelegramApiRequestException)) return false;
+        Integer code = ((TelegramApiRequestException) e).getErrorCode();
+        return code != null && (code == 400 || code == 403);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        executor.shutdown();
+    }
+}
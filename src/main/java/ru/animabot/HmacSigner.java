@@ -0,0 +1,118 @@
+package ru.animabot;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * HMAC-SHA256 для токенов заказа и подписей провайдера.
+ * Mac инициализируется ключом один раз, дальше рабочие экземпляры — клоны прототипа
+ * из пула (потоки у нас виртуальные и короткоживущие, ThreadLocal тут не помог бы).
+ * Hex — через таблицу, сравнение подписей (hex и base64) — за постоянное время
+ * и без промежуточных строк.
+ */
+public final class HmacSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final Map<String, HmacSigner> BY_KEY = new ConcurrentHashMap<>();
+
+    private final SecretKeySpec key;
+    private final Mac prototype;
+    private final Queue<Mac> idle = new ConcurrentLinkedQueue<>();
+
+    private HmacSigner(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        try {
+            prototype = Mac.getInstance(ALGORITHM);
+            prototype.init(key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Подписчик для ключа (кэшируется: ключей у бота единицы). */
+    public static HmacSigner forKey(String secret) {
+        return BY_KEY.computeIfAbsent(secret, s -> new HmacSigner(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public byte[] sign(byte[] data) {
+        Mac mac = idle.poll();
+        if (mac == null) mac = newMac();
+        try {
+            return mac.doFinal(data);
+        } finally {
+            idle.offer(mac); // doFinal сбрасывает состояние — экземпляр готов к следующей подписи
+        }
+    }
+
+    public byte[] sign(String data) {
+        return sign(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String signHex(String data) {
+        return toHex(sign(data));
+    }
+
+    /** Подпись в hex (регистр не важен) совпадает с ожидаемой. */
+    public static boolean verifyHex(byte[] expected, CharSequence hex) {
+        if (hex == null || hex.length() != expected.length * 2) return false;
+        int diff = 0;
+        for (int i = 0; i < expected.length; i++) {
+            diff |= HEX[(expected[i] >> 4) & 0xF] ^ Character.toLowerCase(hex.charAt(2 * i));
+            diff |= HEX[expected[i] & 0xF] ^ Character.toLowerCase(hex.charAt(2 * i + 1));
+        }
+        return diff == 0;
+    }
+
+    /** Подпись в стандартном base64 (с '=') совпадает с ожидаемой. */
+    public static boolean verifyBase64(byte[] expected, CharSequence b64) {
+        int n = expected.length;
+        if (b64 == null || b64.length() != (n + 2) / 3 * 4) return false;
+        int diff = 0;
+        int pos = 0;
+        for (int i = 0; i < n; i += 3) {
+            int b0 = expected[i] & 0xFF;
+            int b1 = i + 1 < n ? expected[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < n ? expected[i + 2] & 0xFF : 0;
+            diff |= BASE64[b0 >> 2] ^ b64.charAt(pos++);
+            diff |= BASE64[((b0 & 0x3) << 4) | (b1 >> 4)] ^ b64.charAt(pos++);
+            diff |= (i + 1 < n ? BASE64[((b1 & 0xF) << 2) | (b2 >> 6)] : '=') ^ b64.charAt(pos++);
+            diff |= (i + 2 < n ? BASE64[b2 & 0x3F] : '=') ^ b64.charAt(pos++);
+        }
+        return diff == 0;
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            out[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    /** Клон прототипа: без повторного разбора ключа; провайдер без clone() — обычная инициализация. */
+    private Mac newMac() {
+        try {
+            synchronized (prototype) {
+                return (Mac) prototype.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
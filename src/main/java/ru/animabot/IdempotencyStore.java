@@ -0,0 +1,95 @@
+package ru.animabot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Идемпотентность вебхуков: processed_webhooks в SQLite + LRU недавних событий в памяти.
+ * Повтор от провайдера почти всегда приходит вскоре после оригинала — такой дубликат
+ * отсекается без обращения к БД. Событие попадает в LRU только после коммита отметки.
+ * Таблица чистится в фоне: записи старше WEBHOOK_RETENTION_DAYS удаляются небольшими пачками,
+ * чтобы не держать писателя и не раздувать WAL одной большой транзакцией.
+ */
+public class IdempotencyStore implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdempotencyStore.class);
+
+    private static final int  PRUNE_BATCH          = 500;
+    private static final long PRUNE_PERIOD_MINUTES = 60;
+
+    private final SQLiteManager db;
+    private final int capacity;
+    private final long retentionMillis;
+    private final Map<String, Boolean> recent;
+    private final ScheduledExecutorService pruner = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "idempotency-prune");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public IdempotencyStore(SQLiteManager db) {
+        this.db = db;
+        this.capacity = envInt("IDEMPOTENCY_CACHE_SIZE", 10_000);
+        this.retentionMillis = TimeUnit.DAYS.toMillis(envInt("WEBHOOK_RETENTION_DAYS", 30));
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+        pruner.scheduleWithFixedDelay(this::prune, 1, PRUNE_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /** true — событие точно уже обработано (видели недавно); false — решает БД. */
+    public boolean isKnown(String provider, String eventId) {
+        if (eventId == null || eventId.isBlank()) return false;
+        synchronized (recent) {
+            return recent.get(key(provider, eventId)) != null;
+        }
+    }
+
+    /** Отметка provider/eventId уже закоммичена (новым событием или дубликатом). */
+    public void remember(String provider, String eventId) {
+        if (eventId == null || eventId.isBlank()) return;
+        synchronized (recent) {
+            recent.put(key(provider, eventId), Boolean.TRUE);
+        }
+    }
+
+    /** Удаляет устаревшие отметки пачками по PRUNE_BATCH; каждая пачка — отдельная запись писателя. */
+    void prune() {
+        long before = System.currentTimeMillis() - retentionMillis;
+        JfrEvents.SchedulerJob ev = JfrEvents.job("idempotency-prune");
+        int total = 0;
+        try {
+            int n;
+            do {
+                n = db.pruneProcessedWebhooks(before, PRUNE_BATCH).join();
+                total += n;
+            } while (n == PRUNE_BATCH);
+            if (total > 0) LOG.info("idempotency: pruned {} processed_webhooks rows", total);
+        } catch (Exception e) {
+            ev.failed = true;
+            LOG.warn("idempotency: prune failed after {} rows", total, e);
+        }
+        ev.items = total;
+        ev.commit();
+    }
+
+    private static String key(String provider, String eventId) {
+        return provider + '\u0000' + eventId;
+    }
+
+    private static int envInt(String name, int def) {
+        try { return Integer.parseInt(System.getenv().getOrDefault(name, String.valueOf(def)).trim()); }
+        catch (NumberFormatException e) { return def; }
+    }
+
+    @Override
+    public void close() {
+        pruner.shutdown();
+    }
+}
@@ -0,0 +1,111 @@
+package ru.animabot;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * События Java Flight Recorder для горячих путей бота. Пока запись не идёт, begin/commit почти бесплатны.
+ * Настройки записи — jfr/soulway.jfc, в контейнере:
+ * jcmd 1 JFR.start settings=/opt/soulway/soulway.jfc duration=5m filename=/tmp/soulway.jfr
+ */
+public final class JfrEvents {
+
+    private JfrEvents() {}
+
+    @Name("ru.animabot.Update")
+    @Label("Update")
+    @Description("Обработка апдейта Telegram: тип и маршрут (команда или префикс callback data)")
+    @Category({"SoulWay", "Bot"})
+    @StackTrace(false)
+    public static final class Update extends Event {
+        @Label("Type") public String type;
+        @Label("Route") public String route;
+        @Label("Chat Id") public long chatId;
+    }
+
+    @Name("ru.animabot.DbQuery")
+    @Label("DB Query")
+    @Description("Вызов SQLiteManager: чтение до результата, запись до коммита (вместе с ожиданием писателя)")
+    @Category({"SoulWay", "SQLite"})
+    @StackTrace(false)
+    public static final class DbQuery extends Event {
+        @Label("SQL Id") public String sqlId;
+        @Label("Write") public boolean write;
+        @Label("Rows") @Description("Строк в результате или затронуто; -1 — неизвестно")
+        public int rows;
+        @Label("Failed") public boolean failed;
+    }
+
+    @Name("ru.animabot.BotApiCall")
+    @Label("Bot API Call")
+    @Description("HTTP-вызов Bot API (без ожидания в очереди SendScheduler)")
+    @Category({"SoulWay", "Bot API"})
+    @StackTrace(false)
+    public static final class BotApiCall extends Event {
+        @Label("Method") public String method;
+        @Label("Chat") public String chat;
+        @Label("Uploaded") @DataAmount(DataAmount.BYTES) public long uploadedBytes;
+        @Label("Status") @Description("200 — успех, иначе error_code Telegram; -1 — сетевая ошибка")
+        public int status;
+        @Label("Retry") public int retry;
+    }
+
+    @Name("ru.animabot.WebhookStage")
+    @Label("Webhook Stage")
+    @Description("Этап обработки входящего вебхука: read, verify, parse, idempotency, fulfill")
+    @Category({"SoulWay", "Webhooks"})
+    @StackTrace(false)
+    public static final class WebhookStage extends Event {
+        @Label("Webhook") public String webhook;
+        @Label("Stage") public String stage;
+    }
+
+    @Name("ru.animabot.SchedulerJob")
+    @Label("Scheduler Job")
+    @Description("Запуск фоновой задачи: expiry, drips, fulfillment, idempotency-prune")
+    @Category({"SoulWay", "Scheduler"})
+    @StackTrace(false)
+    public static final class SchedulerJob extends Event {
+        @Label("Job") public String job;
+        @Label("Items") public int items;
+        @Label("Failed") public boolean failed;
+    }
+
+    /** Начатый этап вебхука; завершается commit(). */
+    public static WebhookStage stage(String webhook, String stage) {
+        WebhookStage e = new WebhookStage();
+        e.webhook = webhook;
+        e.stage = stage;
+        e.begin();
+        return e;
+    }
+
+    /** Начатая фоновая задача; items и failed заполняются перед commit(). */
+    public static SchedulerJob job(String name) {
+        SchedulerJob e = new SchedulerJob();
+        e.job = name;
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Сколько строк видно по результату вызова SQLiteManager: размер списка или map, число из DELETE/UPDATE,
+     * true/false — 1/0, одиночное значение — 1, null при чтении — 0; Void при записи — неизвестно.
+     */
+    static int rowsOf(Object result, boolean write) {
+        if (result == null) return write ? -1 : 0;
+        if (result instanceof Collection) return ((Collection<?>) result).size();
+        if (result instanceof Map) return ((Map<?, ?>) result).size();
+        if (result instanceof Integer) return (Integer) result;
+        if (result instanceof Boolean) return (Boolean) result ? 1 : 0;
+        return 1;
+    }
+}
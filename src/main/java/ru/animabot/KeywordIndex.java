@@ -0,0 +1,100 @@
+package ru.animabot;
+
+import java.util.*;
+
+/**
+ * Неизменяемый индекс кодовых слов (ключ — нормализованное слово в UPPER CASE).
+ * Материалы уже разобраны: первое изображение идёт фото с подписью,
+ * остальное — документами. Путь выдачи подарка не трогает ни БД, ни CSV.
+ * При изменении слова строится новый индекс и подменяется целиком.
+ */
+public final class KeywordIndex {
+
+    /** Готовое к отправке кодовое слово. */
+    public static final class Entry {
+        private final String keyword;
+        private final String introText;
+        private final String rewardText;
+        private final String photo;
+        private final List<String> documents;
+        private final List<String> materials;
+
+        Entry(Keyword kw) {
+            this.keyword = kw.getKeyword();
+            this.introText = kw.getIntroText();
+            this.rewardText = kw.getRewardText();
+            this.materials = Collections.unmodifiableList(new ArrayList<>(kw.getMaterials()));
+
+            String image = null;
+            List<String> docs = new ArrayList<>();
+            for (String m : materials) {
+                if (m == null || m.isBlank()) continue;
+                String v = m.trim();
+                if (isImageSpec(v)) { if (image == null) image = stripImgPrefix(v); else docs.add(v); }
+                else docs.add(v);
+            }
+            this.photo = image;
+            this.documents = Collections.unmodifiableList(docs);
+        }
+
+        public String getKeyword() { return keyword; }
+        public String getIntroText() { return introText; }
+        public String getRewardText() { return rewardText; }
+        /** Изображение для фото с подписью (без префикса img:) или null. */
+        public String getPhoto() { return photo; }
+        /** Остальные материалы — отправляются документами по одному. */
+        public List<String> getDocuments() { return documents; }
+        public boolean hasMaterials() { return !materials.isEmpty(); }
+
+        Keyword toKeyword() { return new Keyword(keyword, introText, rewardText, materials); }
+    }
+
+    private static final KeywordIndex EMPTY = new KeywordIndex(Collections.emptyMap());
+
+    private final Map<String, Entry> byKey;
+
+    private KeywordIndex(Map<String, Entry> byKey) {
+        this.byKey = byKey;
+    }
+
+    static KeywordIndex empty() { return EMPTY; }
+
+    /** Индекс из нормализованных строк таблицы keywords. */
+    static KeywordIndex of(Collection<Keyword> keywords) {
+        Map<String, Entry> m = new HashMap<>();
+        for (Keyword kw : keywords) m.put(kw.getKeyword(), new Entry(kw));
+        return new KeywordIndex(Collections.unmodifiableMap(m));
+    }
+
+    /** Новый индекс с добавленным/заменённым словом. */
+    KeywordIndex with(Keyword kw) {
+        Map<String, Entry> m = new HashMap<>(byKey);
+        m.put(kw.getKeyword(), new Entry(kw));
+        return new KeywordIndex(Collections.unmodifiableMap(m));
+    }
+
+    /** Поиск по ключу; callback-данные обычно уже нормализованы, поэтому сначала — точное совпадение. */
+    public Entry get(String key) {
+        if (key == null) return null;
+        Entry e = byKey.get(key);
+        if (e != null) return e;
+        return byKey.get(key.trim().toUpperCase());
+    }
+
+    public int size() { return byKey.size(); }
+
+    static boolean isImageSpec(String s) {
+        if (s == null) return false;
+        String v = s.trim().toLowerCase(Locale.ROOT);
+        if (v.startsWith("img:")) return true;
+        return v.endsWith(".jpg") || v.endsWith(".jpeg") || v.endsWith(".png")
+                || v.endsWith(".webp") || v.endsWith(".heic");
+    }
+
+    static String stripImgPrefix(String s) {
+        if (s == null) return null;
+        String v = s.trim();
+        if (v.toLowerCase(Locale.ROOT).startsWith("img:")) return v.substring(4).trim();
+        return v;
+    }
+}
@@ -0,0 +1,51 @@
+package ru.animabot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш результатов проверки подписки на канал (GetChatMember).
+ * Положительный ответ живёт дольше отрицательного: только что подписавшийся
+ * пользователь не должен долго получать «вы не подписаны».
+ * Если бот — админ канала, кэш дополнительно обновляется из chat_member апдейтов.
+ */
+public class MembershipCache {
+
+    private static final long POSITIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long NEGATIVE_TTL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    /** При таком размере при очередной записи выметаем протухшие записи. */
+    private static final int SWEEP_THRESHOLD = 50_000;
+
+    private static final class Entry {
+        final boolean member;
+        final long expiresAtMillis;
+        Entry(boolean member, long expiresAtMillis) { this.member = member; this.expiresAtMillis = expiresAtMillis; }
+    }
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    /** true/false — ответ из кэша, null — нужно спросить Telegram. */
+    public Boolean get(long userId) {
+        Entry e = entries.get(userId);
+        if (e == null) return null;
+        if (e.expiresAtMillis <= System.currentTimeMillis()) {
+            entries.remove(userId, e);
+            return null;
+        }
+        return e.member;
+    }
+
+    public void put(long userId, boolean member) {
+        long now = System.currentTimeMillis();
+        entries.put(userId, new Entry(member, now + (member ? POSITIVE_TTL_MILLIS : NEGATIVE_TTL_MILLIS)));
+        if (entries.size() > SWEEP_THRESHOLD) {
+            entries.values().removeIf(x -> x.expiresAtMillis <= now);
+        }
+    }
+
+    /** Статус участника канала: всё, кроме left/kicked, считаем подпиской. */
+    public static boolean isMemberStatus(String status) {
+        return status != null && !"left".equalsIgnoreCase(status) && !"kicked".equalsIgnoreCase(status);
+    }
+}
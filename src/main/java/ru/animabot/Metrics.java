@@ -0,0 +1,197 @@
+package ru.animabot;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Метрики процесса в текстовом формате Prometheus (отдаются на /metrics, см. {@link ProdamusWebhookServer}).
+ * Запись без блокировок: серия с нужными метками берётся из ConcurrentHashMap (создаётся один раз),
+ * дальше — только LongAdder. Гистограммы с фиксированными корзинами, время — в секундах.
+ * Gauge вычисляется в момент чтения /metrics.
+ */
+public final class Metrics {
+
+    /** Верхние границы корзин гистограмм, секунды (+Inf добавляется при выводе). */
+    private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+    }
+
+    private static final List<Family<?>> FAMILIES = new CopyOnWriteArrayList<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    // ===== метрики бота =====
+
+    public static final Family<Histogram> DB_CALLS = histogram("soulway_db_call_seconds",
+            "SQLiteManager calls: reads until result, writes until commit", "method");
+    public static final Family<Histogram> BOT_API_CALLS = histogram("soulway_bot_api_call_seconds",
+            "Bot API HTTP calls (without waiting in the send queue)", "method");
+    public static final Family<Counter> BOT_API_429 = counter("soulway_bot_api_429_total",
+            "Bot API answers 429 Too Many Requests", "method");
+    public static final Family<Counter> BOT_API_FAILURES = counter("soulway_bot_api_failures_total",
+            "Bot API calls that failed after retries", "method");
+    public static final Family<Histogram> UPDATES = histogram("soulway_update_seconds",
+            "Update handling time by update type", "type");
+    public static final Family<Histogram> WEBHOOKS = histogram("soulway_webhook_seconds",
+            "Incoming webhook handling time by outcome", "webhook", "outcome");
+
+    private Metrics() {}
+
+    /** Гистограмма длительностей. */
+    public static final class Histogram {
+        private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) i++;
+            counts[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /** Длительность от t0 (System.nanoTime()) до сейчас. */
+        public void observeSince(long t0) {
+            observeNanos(System.nanoTime() - t0);
+        }
+
+        private void render(StringBuilder sb, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String le = i < BUCKETS.length ? formatDouble(BUCKETS[i]) : "+Inf";
+                sb.append(name).append("_bucket{").append(labels).append(labels.isEmpty() ? "" : ",")
+                        .append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum").append(braces(labels)).append(' ').append(formatDouble(sumNanos.sum() / 1e9)).append('\n');
+            sb.append(name).append("_count").append(braces(labels)).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {}
+
+        public void increment() {
+            value.increment();
+        }
+
+        private void render(StringBuilder sb, String name, String labels) {
+            sb.append(name).append(braces(labels)).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    /** Набор серий одной метрики с разными значениями меток. */
+    public static final class Family<M> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Supplier<M> factory;
+        private final Map<String, M> series = new ConcurrentHashMap<>();
+        private final Map<String, String> renderedLabels = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type, String[] labelNames, Supplier<M> factory) {
+            this.name = name; this.help = help; this.type = type; this.labelNames = labelNames; this.factory = factory;
+        }
+
+        /** Серия для значений меток (в порядке объявления). */
+        public M labels(String... values) {
+            String key = values.length == 1 ? values[0] : String.join("\u0000", values);
+            M m = series.get(key);
+            if (m != null) return m;
+            return series.computeIfAbsent(key, k -> {
+                renderedLabels.put(k, renderLabels(labelNames, values));
+                return factory.get();
+            });
+        }
+
+        private void render(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Map.Entry<String, M> e : series.entrySet()) {
+                String labels = renderedLabels.getOrDefault(e.getKey(), "");
+                M m = e.getValue();
+                if (m instanceof Histogram) ((Histogram) m).render(sb, name, labels);
+                else ((Counter) m).render(sb, name, labels);
+            }
+        }
+    }
+
+    private static final class Gauge {
+        final String help;
+        final LongSupplier value;
+        Gauge(String help, LongSupplier value) { this.help = help; this.value = value; }
+    }
+
+    public static Family<Histogram> histogram(String name, String help, String... labelNames) {
+        Family<Histogram> f = new Family<>(name, help, "histogram", labelNames, Histogram::new);
+        FAMILIES.add(f);
+        return f;
+    }
+
+    public static Family<Counter> counter(String name, String help, String... labelNames) {
+        Family<Counter> f = new Family<>(name, help, "counter", labelNames, Counter::new);
+        FAMILIES.add(f);
+        return f;
+    }
+
+    /** Gauge без меток; повторная регистрация с тем же именем заменяет прежний. */
+    public static void gauge(String name, String help, LongSupplier value) {
+        GAUGES.put(name, new Gauge(help, value));
+    }
+
+    /** Все метрики в формате text/plain; version=0.0.4. */
+    public static String render() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Family<?> f : FAMILIES) f.render(sb);
+        for (Map.Entry<String, Gauge> e : new TreeMap<>(GAUGES).entrySet()) {
+            long v;
+            try { v = e.getValue().value.getAsLong(); } catch (RuntimeException ex) { continue; }
+            sb.append("# HELP ").append(e.getKey()).append(' ').append(e.getValue().help).append('\n');
+            sb.append("# TYPE ").append(e.getKey()).append(" gauge\n");
+            sb.append(e.getKey()).append(' ').append(v).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String renderLabels(String[] names, String[] values) {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("expected labels " + String.join(",", names));
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(names[i]).append("=\"");
+            String v = values[i] == null ? "" : values[i];
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"') sb.append('\\').append(c);
+                else if (c == '\n') sb.append("\\n");
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private static String braces(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String formatDouble(double d) {
+        return String.format(Locale.ROOT, "%s", d);
+    }
+}
@@ -1,5 +1,7 @@
 package ru.animabot;
 
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -8,26 +10,59 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP-сервер вебхуков. Каждый запрос — на виртуальном потоке, но одновременно
+ * обрабатывается не больше PRODAMUS_MAX_CONCURRENCY запросов: сверх лимита сразу 503
+ * с Retry-After (Prodamus повторит позже). Тело ограничено PRODAMUS_MAX_BODY_BYTES,
+ * медленные клиенты обрываются по таймауту HTTP_READ_TIMEOUT_SECONDS.
+ * Там же GET /metrics — {@link Metrics} для Prometheus, только с Authorization: Bearer METRICS_TOKEN
+ * (без METRICS_TOKEN эндпоинт не поднимается).
+ */
 public class ProdamusWebhookServer {
 
     private static final Logger LOG = LoggerFactory.getLogger(ProdamusWebhookServer.class);
 
+    private static final int    MAX_CONCURRENCY      = envInt("PRODAMUS_MAX_CONCURRENCY", 64);
+    private static final int    MAX_BODY_BYTES       = envInt("PRODAMUS_MAX_BODY_BYTES", 256 * 1024);
+    private static final int    BACKLOG              = envInt("HTTP_BACKLOG", 128);
+    private static final int    READ_TIMEOUT_SECONDS = envInt("HTTP_READ_TIMEOUT_SECONDS", 10);
+    private static final String RETRY_AFTER_SECONDS  = "5";
+
+    /** Поля Prodamus, которые нужны обработчику (остальные пары формы не декодируются). */
+    private static final FormFields.Keys FIELDS = FormFields.keys(
+            "payment_status", "status", "order_id", "order_num", "customer_extra", "sum",
+            "products[0][price]", "products[0][name]", "event_id");
+
+    private static final String OUTCOME_ATTR = "soulway.outcome";
+
     private final HttpServer server;
+    private final Filter limiter = new ConcurrencyLimit(MAX_CONCURRENCY);
     private final SoulWayBot bot;
     private final String providerSecret; // секрет подписи провайдера (если есть)
     private final String linkSecret;     // наш секрет для токена swb:<uid>:<days>:<hmac>
+    private final byte[] metricsAuth;    // "Bearer <METRICS_TOKEN>"; null — /metrics выключен
 
     public ProdamusWebhookServer(SoulWayBot bot, int port, String providerSecret) throws IOException {
         this.bot = bot;
         this.providerSecret = (providerSecret == null) ? "" : providerSecret.trim();
         this.linkSecret = System.getenv().getOrDefault("BOT_LINK_SECRET", "");
-        server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/webhook/prodamus", new Handler());
-        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        String metricsToken = System.getenv().getOrDefault("METRICS_TOKEN", "").trim();
+        this.metricsAuth = metricsToken.isEmpty() ? null : ("Bearer " + metricsToken).getBytes(StandardCharsets.UTF_8);
+        // Таймауты встроенного HttpServer читаются один раз при загрузке его классов — задаём до create()
+        setDefaultProperty("sun.net.httpserver.maxReqTime", String.valueOf(READ_TIMEOUT_SECONDS));
+        setDefaultProperty("sun.net.httpserver.maxRspTime", String.valueOf(READ_TIMEOUT_SECONDS));
+        server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        limited(server.createContext("/webhook/prodamus", new Handler()));
+        if (metricsAuth != null) limited(server.createContext("/metrics", this::metrics));
+        else LOG.info("METRICS_TOKEN is not set — /metrics is disabled");
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
     }
 
     public void start() {
@@ -35,16 +70,58 @@ public class ProdamusWebhookServer {
         LOG.info("Prodamus Webhook server started at /webhook/prodamus");
     }
 
+    /** Webhook для апдейтов Telegram на том же сервере: /webhook/telegram/<secret>. */
+    public String addTelegramWebhook(String secret) {
+        String path = TelegramWebhookHandler.CONTEXT_PREFIX + secret;
+        limited(server.createContext(path, new TelegramWebhookHandler(bot, secret)));
+        return path;
+    }
+
+    private void limited(HttpContext ctx) {
+        ctx.getFilters().add(limiter);
+    }
+
+    /** Не больше max запросов одновременно; остальным — сразу 503, без ожидания в очереди. */
+    private static final class ConcurrencyLimit extends Filter {
+        private final Semaphore permits;
+
+        ConcurrencyLimit(int max) { this.permits = new Semaphore(max); }
+
+        @Override public void doFilter(HttpExchange ex, Chain chain) throws IOException {
+            if (!permits.tryAcquire()) {
+                LOG.warn("[http] saturated ({} in flight), 503 for {}", MAX_CONCURRENCY, ex.getRequestURI().getPath());
+                ex.getResponseHeaders().add("Retry-After", RETRY_AFTER_SECONDS);
+                ex.sendResponseHeaders(503, -1);
+                ex.close();
+                return;
+            }
+            try {
+                chain.doFilter(ex);
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override public String description() { return "concurrency limit"; }
+    }
+
     private class Handler implements HttpHandler {
         @Override public void handle(HttpExchange ex) throws IOException {
-            long t0 = System.currentTimeMillis();
+            long t0 = System.nanoTime();
             try {
                 if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
                     respond(ex, 405, "method not allowed");
                     return;
                 }
 
-                byte[] raw = readAll(ex.getRequestBody());
+                JfrEvents.WebhookStage stage = JfrEvents.stage("prodamus", "read");
+                byte[] raw = readAll(ex.getRequestBody(), MAX_BODY_BYTES);
+                stage.commit();
+                if (raw == null) {
+                    LOG.warn("[prodamus] body larger than {} bytes rejected", MAX_BODY_BYTES);
+                    respond(ex, 413, "payload too large");
+                    return;
+                }
                 String ctype = Optional.ofNullable(ex.getRequestHeaders().getFirst("Content-Type")).orElse("");
                 String sigHeader = firstNonEmpty(
                         ex.getRequestHeaders().getFirst("Sign"),
@@ -58,9 +135,11 @@ public class ProdamusWebhookServer {
 
                 boolean strict = !"0".equals(System.getenv().getOrDefault("PRODAMUS_STRICT", "1"));
                 if (!providerSecret.isBlank()) {
-                    if (!verifySignatureFlexible(raw, sigHeader, providerSecret)) {
-                        Map<String,Object> flatSan = parseForm(new String(raw, StandardCharsets.UTF_8));
-                        LOG.warn("[prodamus] provider signature mismatch; strict={}, flatSan={}", strict, toFlat(flatSan));
+                    stage = JfrEvents.stage("prodamus", "verify");
+                    boolean verified = verifySignatureFlexible(raw, sigHeader, providerSecret);
+                    stage.commit();
+                    if (!verified) {
+                        LOG.warn("[prodamus] provider signature mismatch; strict={}, flatSan={}", strict, FormFields.parse(raw, FIELDS));
                         if (strict) {
                             respond(ex, 200, "ok (ignored)");
                             return;
@@ -71,19 +150,20 @@ public class ProdamusWebhookServer {
                     LOG.warn("[prodamus] PRODAMUS_SECRET is empty — provider signature check is DISABLED!");
                 }
 
-                String body = new String(raw, StandardCharsets.UTF_8);
-                Map<String, Object> form = parseForm(body);
+                stage = JfrEvents.stage("prodamus", "parse");
+                FormFields form = FormFields.parse(raw, FIELDS);
 
                 // Поля (двойная декодировка значений — часто приходят проценто-кодированные)
-                String status      = or(getString(form, "payment_status"), getString(form, "status"));
-                String orderId     = doubleDecode(getString(form, "order_id"));
-                String orderNum    = doubleDecode(getString(form, "order_num"));     // ← здесь обычно наш токен
-                String custExtra   = doubleDecode(getString(form, "customer_extra"));
-                String sumStr      = doubleDecode(getString(form, "sum"));
-                String prodPrice0  = doubleDecode(getString(form, "products[0][price]"));
-                String prodName0   = doubleDecode(getString(form, "products[0][name]"));
-                String eventId     = or(doubleDecode(getString(form, "event_id")),
+                String status      = or(form.get("payment_status"), form.get("status"));
+                String orderId     = form.getDecoded("order_id");
+                String orderNum    = form.getDecoded("order_num");     // ← здесь обычно наш токен
+                String custExtra   = form.getDecoded("customer_extra");
+                String sumStr      = form.getDecoded("sum");
+                String prodPrice0  = form.getDecoded("products[0][price]");
+                String prodName0   = form.getDecoded("products[0][name]");
+                String eventId     = or(form.getDecoded("event_id"),
                         or(orderId, orderNum)); // идемпотентность: используем что-то стабильное
+                stage.commit();
 
                 LOG.info("[prodamus] parsed: order_id='{}', order_num='{}', customer_extra='{}', sum='{}', price0='{}', name0='{}', status='{}'",
                         safe(orderId), safe(orderNum), safe(custExtra), safe(sumStr), safe(prodPrice0), safe(prodName0), safe(status));
@@ -93,15 +173,8 @@ public class ProdamusWebhookServer {
                     return;
                 }
 
-                // ИДЕМПОТЕНТНОСТЬ: если уже обрабатывали — отвечаем ОК, но выходим.
-                if (eventId != null && !eventId.isBlank()) {
-                    boolean firstTime = bot.getDb().markWebhookProcessed("prodamus", eventId);
-                    if (!firstTime) {
-                        LOG.info("[prodamus] duplicate webhook ignored, eventId={}", eventId);
-                        respond(ex, 200, "ok (duplicate)");
-                        return;
-                    }
-                }
+                // Выдача доступа — через outbox: задание пишется одной транзакцией с отметкой идемпотентности,
+                // выполняет его FulfillmentWorker уже после ответа.
 
                 // 1) Пытаемся разобрать наш токен swb:<uid>:<days>:<hmac> (сначала order_num, потом order_id)
                 long[] parsed = tryParseOurToken(orderNum);
@@ -110,25 +183,20 @@ public class ProdamusWebhookServer {
                 if (parsed != null) {
                     long uid = parsed[0];
                     int  days = (int) parsed[1];
-                    try {
-                        if (days > 0) {
-                            bot.onProdamusPaid(uid, days);
+                    if (days > 0) {
+                        fulfill(ex, eventId, uid, days, 0);
+                    } else {
+                        // days==0 используем только для специальных тестовых продуктов (напр., TEST-5M)
+                        Integer minutes = mapNameToTestMinutes(prodName0);
+                        if (minutes != null && minutes > 0) {
+                            fulfill(ex, eventId, uid, 0, minutes);
                         } else {
-                            // days==0 используем только для специальных тестовых продуктов (напр., TEST-5M)
-                            Integer minutes = mapNameToTestMinutes(prodName0);
-                            if (minutes != null && minutes > 0) {
-                                bot.onProdamusPaidMinutes(uid, minutes);
-                            } else {
-                                LOG.warn("[prodamus] token days=0 but name doesn't indicate test minutes");
-                            }
+                            LOG.warn("[prodamus] token days=0 but name doesn't indicate test minutes");
+                            respond(ex, 200, "ok (ignored)");
                         }
-                        respond(ex, 200, "ok");
-                    } catch (Exception e) {
-                        LOG.error("onProdamusPaid failed (token path)", e);
-                        respond(ex, 500, "internal error");
                     }
                     LOG.info("[prodamus] handled in {} ms (token path uid={}, days={})",
-                            (System.currentTimeMillis() - t0), parsed[0], parsed[1]);
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), parsed[0], parsed[1]);
                     return;
                 }
 
@@ -138,156 +206,77 @@ public class ProdamusWebhookServer {
                     // Тестовый продукт на 5 минут?
                     Integer testMin = mapNameToTestMinutes(prodName0);
                     if (testMin != null && testMin > 0) {
-                        try {
-                            bot.onProdamusPaidMinutes(uid, testMin);
-                            respond(ex, 200, "ok");
-                        } catch (Exception e) {
-                            LOG.error("onProdamusPaidMinutes failed (fallback path)", e);
-                            respond(ex, 500, "internal error");
-                        }
+                        fulfill(ex, eventId, uid, 0, testMin);
                         LOG.info("[prodamus] handled in {} ms (fallback TEST-{}m uid={})",
-                                (System.currentTimeMillis() - t0), testMin, uid);
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), testMin, uid);
                         return;
                     }
 
-                    Integer days = null;
-                    days = (days != null) ? days : mapPriceToDays(sumStr);
-                    days = (days != null) ? days : mapPriceToDays(prodPrice0);
-                    days = (days != null) ? days : mapNameToDays(prodName0);
-
-                    if (days != null && days > 0) {
-                        try {
-                            bot.onProdamusPaid(uid, days);
-                            respond(ex, 200, "ok");
-                        } catch (Exception e) {
-                            LOG.error("onProdamusPaid failed (fallback path)", e);
-                            respond(ex, 500, "internal error");
-                        }
+                    // срок — по таблице tariffs: сумма в копейках, затем точное название продукта из нашей ссылки
+                    TariffIndex tariffs = bot.getDb().tariffs();
+                    Tariff tariff = tariffs.byPrice(sumStr);
+                    if (tariff == null) tariff = tariffs.byPrice(prodPrice0);
+                    if (tariff == null) tariff = tariffs.byProductName(prodName0);
+                    int days = tariff != null ? tariff.getPeriodDays() : 0;
+
+                    if (days > 0) {
+                        fulfill(ex, eventId, uid, days, 0);
                         LOG.info("[prodamus] handled in {} ms (fallback uid={}, days={})",
-                                (System.currentTimeMillis() - t0), uid, days);
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0), uid, days);
                         return;
                     } else {
-                        LOG.warn("[prodamus] fallback could not determine days (uid present). form={}", toFlat(form));
+                        LOG.warn("[prodamus] fallback could not determine days (uid present). form={}", form);
                         respond(ex, 200, "ok (ignored)");
                         return;
                     }
                 }
 
-                LOG.warn("[prodamus] insufficient data to grant sub; flat={}", toFlat(form));
+                LOG.warn("[prodamus] insufficient data to grant sub; flat={}", form);
                 respond(ex, 200, "ok (ignored)");
 
             } catch (Exception e) {
                 LOG.error("webhook error", e);
                 respond(ex, 500, "internal error");
             } finally {
-                LOG.info("[prodamus] handled in {} ms", (System.currentTimeMillis() - t0));
+                long elapsed = System.nanoTime() - t0;
+                Metrics.WEBHOOKS.labels("prodamus", outcome(ex)).observeNanos(elapsed);
+                LOG.info("[prodamus] handled in {} ms", TimeUnit.NANOSECONDS.toMillis(elapsed));
             }
         }
     }
 
+    /** Сохраняет задание на выдачу и отвечает; ошибка БД уходит в общий catch (500 — провайдер повторит). */
+    private void fulfill(HttpExchange ex, String eventId, long uid, int days, int minutes) throws IOException {
+        boolean firstTime = bot.getFulfillment().enqueue("prodamus", eventId, uid, days, minutes).join();
+        if (!firstTime) {
+            LOG.info("[prodamus] duplicate webhook ignored, eventId={}", eventId);
+            respond(ex, 200, "ok (duplicate)");
+            return;
+        }
+        respond(ex, 200, "ok");
+    }
+
     // ==== Наш токен может лежать в order_num или order_id ====
     private long[] tryParseOurToken(String v) {
         if (v == null || v.isBlank()) return null;
         return SoulWayBot.parseOrderIdToken(v.trim(), linkSecret);
     }
 
-    // ==== Двойная URL-декодировка ====
-    private static String doubleDecode(String s) {
-        if (s == null) return null;
-        String once = urlDecodeSafe(s);
-        String twice = urlDecodeSafe(once);
-        return twice;
-    }
-    private static String urlDecodeSafe(String s) {
-        try { return URLDecoder.decode(s, StandardCharsets.UTF_8); }
-        catch (Exception e) { return s; }
-    }
-
-    // ==== Определение срока по цене/названию (fallback) ====
-    private Integer mapPriceToDays(String priceStr) {
-        String digits = roundPrice(priceStr);
-        int price = parseInt(digits, -1);
-        if (price <= 0) return null;
-        if (price == 1299)  return 30;
-        if (price == 3599)  return 90;
-        if (price == 12900) return 365;
-        return null;
-    }
-    private String roundPrice(String s) {
-        if (s == null) return null;
-        // допускаем форматы "3 599.00" → "3599"
-        String digits = s.replaceAll("[\\s.,]", "");
-        digits = digits.replaceAll("[^0-9]", "");
-        return digits.isEmpty() ? null : digits;
-    }
-    private Integer mapNameToDays(String name) {
-        if (name == null) return null;
-        String n = name.toLowerCase(Locale.ROOT);
-        if (n.contains("1 месяц") || n.contains("1 мес"))  return 30;
-        if (n.contains("3 месяца") || n.contains("3 мес")) return 90;
-        if (n.contains("12 месяцев") || n.contains("12 мес")) return 365;
-        int months = extractMonths(n);
-        if (months == 1)  return 30;
-        if (months == 3)  return 90;
-        if (months == 12) return 365;
-        return null;
-    }
     // Спец: распознаём тестовый продукт на 5 минут по названию
-    private Integer mapNameToTestMinutes(String name) {
+    static Integer mapNameToTestMinutes(String name) {
         if (name == null) return null;
         String n = name.toUpperCase(Locale.ROOT);
         if (n.contains("TEST-5M") || n.contains("TEST5M")) return 5;
         return null;
     }
 
-    private int extractMonths(String n) {
-        try {
-            int idx = n.indexOf("мес");
-            if (idx < 0) idx = n.indexOf("месяц");
-            if (idx < 0) idx = n.indexOf("месяцев");
-            if (idx > 0) {
-                int i = idx - 1;
-                while (i >= 0 && Character.isWhitespace(n.charAt(i))) i--;
-                int end = i + 1;
-                while (i >= 0 && Character.isDigit(n.charAt(i))) i--;
-                int start = i + 1;
-                if (start < end) return Integer.parseInt(n.substring(start, end));
-            }
-        } catch (Exception ignore) {}
-        return -1;
-    }
-
     // ==== helpers ====
     private static boolean verifySignatureFlexible(byte[] rawBody, String signature, String secret) {
         if (signature == null || signature.isBlank()) return false;
         String sig = signature.trim();
-        try {
-            byte[] calc = hmacSha256(rawBody, secret.getBytes(StandardCharsets.UTF_8));
-            String hex = toHex(calc);
-            String b64 = Base64.getEncoder().encodeToString(calc);
-            String s = sig.toLowerCase(Locale.ROOT).startsWith("sha256=") ? sig.substring(7).trim() : sig;
-            return constantTimeEquals(hex, s) || constantTimeEquals(b64, s);
-        } catch (Exception e) { return false; }
-    }
-
-    private static byte[] hmacSha256(byte[] data, byte[] key) throws Exception {
-        javax.crypto.Mac mac = javax.crypto.Mac.getInstance("HmacSHA256");
-        mac.init(new javax.crypto.spec.SecretKeySpec(key, "HmacSHA256"));
-        return mac.doFinal(data != null ? data : new byte[0]);
-    }
-
-    private static String toHex(byte[] b) {
-        StringBuilder sb = new StringBuilder(b.length * 2);
-        for (byte x : b) sb.append(String.format("%02x", x));
-        return sb.toString();
-    }
-
-    // ИСПРАВЛЕНО: корректное сравнение «за O(1)» по времени
-    private static boolean constantTimeEquals(String a, String b) {
-        if (a == null || b == null) return false;
-        byte[] ab = a.getBytes(StandardCharsets.UTF_8);
-        byte[] bb = b.getBytes(StandardCharsets.UTF_8);
-        return java.security.MessageDigest.isEqual(ab, bb);
+        String s = sig.regionMatches(true, 0, "sha256=", 0, 7) ? sig.substring(7).trim() : sig;
+        byte[] calc = HmacSigner.forKey(secret).sign(rawBody != null ? rawBody : new byte[0]);
+        return HmacSigner.verifyHex(calc, s) | HmacSigner.verifyBase64(calc, s);
     }
 
     private static String firstNonEmpty(String... v) {
@@ -296,47 +285,60 @@ public class ProdamusWebhookServer {
         return null;
     }
 
-    private static String getString(Map<String, Object> map, String key) {
-        Object v = map.get(key);
-        if (v == null) return null;
-        if (v instanceof String) return (String) v;
-        return String.valueOf(v);
-    }
-
     private static String shortCt(String ct) {
         int i = ct.indexOf(';');
         return i >= 0 ? ct.substring(0, i).trim() : ct.trim();
     }
 
-    private static Map<String, Object> parseForm(String body) throws UnsupportedEncodingException {
-        Map<String, Object> map = new LinkedHashMap<>();
-        if (body == null || body.isBlank()) return map;
-        for (String pair : body.split("&")) {
-            int i = pair.indexOf('=');
-            if (i < 0) continue;
-            String k = URLDecoder.decode(pair.substring(0, i), StandardCharsets.UTF_8);
-            String v = URLDecoder.decode(pair.substring(i + 1), StandardCharsets.UTF_8);
-            map.put(k, v);
-        }
-        return map;
-    }
-
     private static long parseLong(String s, long def) {
         try { return Long.parseLong(s.trim()); } catch (Exception e) { return def; }
     }
-    private static int parseInt(String s, int def) {
-        try { return Integer.parseInt(s.trim()); } catch (Exception e) { return def; }
+
+    /** Тело запроса целиком или null, если оно длиннее max байт. */
+    private static byte[] readAll(InputStream in, int max) throws IOException {
+        byte[] raw = in.readNBytes(max + 1);
+        return raw.length > max ? null : raw;
     }
 
-    private static byte[] readAll(InputStream in) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] buf = new byte[8192];
-        int r;
-        while ((r = in.read(buf)) >= 0) bos.write(buf, 0, r);
-        return bos.toByteArray();
+    private static void setDefaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) System.setProperty(key, value);
+    }
+
+    private static int envInt(String name, int def) {
+        try { return Integer.parseInt(System.getenv().getOrDefault(name, String.valueOf(def)).trim()); }
+        catch (Exception e) { return def; }
+    }
+
+    /** GET /metrics — метрики в текстовом формате Prometheus; порт публичный, поэтому только с токеном. */
+    private void metrics(HttpExchange ex) throws IOException {
+        if (!"GET".equalsIgnoreCase(ex.getRequestMethod())) {
+            respond(ex, 405, "method not allowed");
+            return;
+        }
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        if (auth == null || !MessageDigest.isEqual(metricsAuth, auth.trim().getBytes(StandardCharsets.UTF_8))) {
+            ex.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+            respond(ex, 401, "unauthorized");
+            return;
+        }
+        byte[] out = Metrics.render().getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        ex.sendResponseHeaders(200, out.length);
+        try (OutputStream os = ex.getResponseBody()) { os.write(out); }
+        ex.close();
+    }
+
+    /** Исход вебхука для метрик: paid / duplicate / ignored по тексту ответа, иначе http_<код>. */
+    private static String outcome(HttpExchange ex) {
+        Object o = ex.getAttribute(OUTCOME_ATTR);
+        return o != null ? (String) o : "http_" + ex.getResponseCode();
     }
 
     private static void respond(HttpExchange ex, int code, String txt) throws IOException {
+        if (code == 200) {
+            ex.setAttribute(OUTCOME_ATTR, txt.equals("ok") ? "paid"
+                    : txt.equals("ok (duplicate)") ? "duplicate" : "ignored");
+        }
         byte[] out = txt.getBytes(StandardCharsets.UTF_8);
         ex.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
         ex.sendResponseHeaders(code, out.length);
@@ -344,11 +346,6 @@ public class ProdamusWebhookServer {
         ex.close();
     }
 
-    private static String toFlat(Map<String, Object> map) {
-        if (map == null) return "{}";
-        return map.toString();
-    }
-
     private static String or(String a, String b) { return a != null ? a : b; }
     private static String safe(String s) { return s == null ? "" : s; }
 }
\ No newline at end of file
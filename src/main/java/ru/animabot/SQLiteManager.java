@@ -2,6 +2,7 @@ package ru.animabot;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * SQLite:
@@ -9,87 +10,116 @@ import java.util.*;
  *  - settings (key,value)
  *  - subscriptions (userId, expiresAtMillis)
  *  - orders (orderId, userId, plan, days, createdAtMillis, paidAtMillis)
- *  - processed_webhooks (provider, event_id) — идемпотентность
+ *  - processed_webhooks (provider, event_id) — идемпотентность (см. {@link IdempotencyStore})
  *  - drip_campaigns (userId, nextAtMillis, step)
+ *  - telegram_files (path, kind, size, mtimeMillis, fileId) — кэш file_id загруженных материалов
+ *  - group_members (userId, present, updatedAtMillis, removedAtMillis) — кто сейчас в закрытой группе
+ *  - job_cursors (name, value) — докуда дошли фоновые задачи
+ *  - fulfillment_jobs — outbox выдачи оплаченного доступа (см. {@link FulfillmentWorker})
+ * Схема версионируется через PRAGMA user_version (см. {@link SchemaMigrations}).
  * Включены WAL/busy_timeout.
+ * Соединения долгоживущие (см. {@link SQLitePool}): один писатель + пул читателей.
+ * Все изменения асинхронные: возвращают CompletableFuture, который завершается
+ * после коммита пачки записей (ошибки логируются, future получает значение по умолчанию).
  */
-public class SQLiteManager {
+public class SQLiteManager implements AutoCloseable {
+
+    /** Сколько соединений только для чтения держим открытыми. */
+    private static final int READ_CONNECTIONS = 4;
 
     private final String dbUrl;
+    private final SQLitePool pool;
+
+    /** Кэш таблицы settings: читается целиком при старте, обновляется в setSetting(s). */
+    private final Object settingsLock = new Object();
+    private volatile SettingsSnapshot settings = SettingsSnapshot.empty();
+
+    /** Индекс кодовых слов: строится при старте, подменяется целиком в upsertKeyword. */
+    private final Object keywordsLock = new Object();
+    private volatile KeywordIndex keywords = KeywordIndex.empty();
+
+    /** Индекс тарифов: строится при старте, подменяется целиком в upsertTariff/deleteTariff. */
+    private final Object tariffsLock = new Object();
+    private volatile TariffIndex tariffs = TariffIndex.empty();
 
     public SQLiteManager(String dbFile) {
         this.dbUrl = "jdbc:sqlite:" + (dbFile == null || dbFile.isBlank() ? "soulway.db" : dbFile);
+        try {
+            this.pool = new SQLitePool(dbUrl, READ_CONNECTIONS);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot open " + dbUrl, e);
+        }
         ensureSchema();
+        loadSettings();
+        keywords = KeywordIndex.of(listKeywords());
+        tariffs = TariffIndex.of(listTariffs());
     }
 
-    private Connection connect() throws SQLException {
-        Connection conn = DriverManager.getConnection(dbUrl);
-        try (Statement st = conn.createStatement()) {
-            st.execute("PRAGMA journal_mode=WAL;");
-            st.execute("PRAGMA busy_timeout=5000;");
-            st.execute("PRAGMA synchronous=NORMAL;");
-        }
-        return conn;
+    /** Дожидается записи всех поставленных изменений и закрывает соединения. */
+    @Override
+    public void close() {
+        pool.close();
     }
 
-    private void ensureSchema() {
-        try (Connection conn = connect()) {
-            conn.setAutoCommit(false);
-
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS keywords (" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                        "keyword TEXT UNIQUE NOT NULL," +
-                        "introText TEXT," +
-                        "rewardText TEXT," +
-                        "materials TEXT" +
-                        ");");
-            }
-
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS settings (" +
-                        "key TEXT PRIMARY KEY," +
-                        "value TEXT" +
-                        ");");
-            }
-
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS subscriptions (" +
-                        "userId INTEGER PRIMARY KEY," +
-                        "expiresAtMillis INTEGER NOT NULL" +
-                        ");");
+    /** Чтение с замером времени в {@link Metrics#DB_CALLS} и событием JFR под именем метода op. */
+    private <T> T read(String op, SQLitePool.Work<T> work) throws SQLException {
+        long t0 = System.nanoTime();
+        JfrEvents.DbQuery ev = new JfrEvents.DbQuery();
+        ev.begin();
+        T result = null;
+        boolean failed = true;
+        try {
+            result = pool.read(work);
+            failed = false;
+            return result;
+        } finally {
+            Metrics.DB_CALLS.labels(op).observeSince(t0);
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.sqlId = op;
+                ev.rows = failed ? -1 : JfrEvents.rowsOf(result, false);
+                ev.failed = failed;
+                ev.commit();
             }
+        }
+    }
 
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS orders (" +
-                        "orderId TEXT PRIMARY KEY," +
-                        "userId INTEGER NOT NULL," +
-                        "plan INTEGER NOT NULL," +
-                        "days INTEGER NOT NULL," +
-                        "createdAtMillis INTEGER NOT NULL," +
-                        "paidAtMillis INTEGER" +
-                        ");");
+    /** Запись через очередь писателя; время — до коммита, ошибки не глотаются. */
+    private <T> CompletableFuture<T> write(String op, SQLitePool.Work<T> work) {
+        long t0 = System.nanoTime();
+        Metrics.Histogram hist = Metrics.DB_CALLS.labels(op);
+        JfrEvents.DbQuery ev = new JfrEvents.DbQuery();
+        ev.begin();
+        return pool.submit(work).whenComplete((r, e) -> {
+            hist.observeSince(t0);
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.sqlId = op;
+                ev.write = true;
+                ev.rows = e != null ? -1 : JfrEvents.rowsOf(r, true);
+                ev.failed = e != null;
+                ev.commit();
             }
+        });
+    }
 
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS processed_webhooks (" +
-                        "provider TEXT NOT NULL," +
-                        "event_id TEXT NOT NULL," +
-                        "processed_at INTEGER NOT NULL," +
-                        "PRIMARY KEY(provider, event_id)" +
-                        ");");
-            }
+    /** Запись через очередь писателя; при ошибке — лог и значение по умолчанию. */
+    private <T> CompletableFuture<T> submit(String op, SQLitePool.Work<T> work, T onError) {
+        return write(op, work).exceptionally(e -> {
+            e.printStackTrace();
+            return onError;
+        });
+    }
 
-            // Новая таблица для drip-кампаний
-            try (Statement st = conn.createStatement()) {
-                st.executeUpdate("CREATE TABLE IF NOT EXISTS drip_campaigns (" +
-                        "userId INTEGER PRIMARY KEY," +
-                        "nextAtMillis INTEGER NOT NULL," +
-                        "step INTEGER NOT NULL" +
-                        ");");
+    private void ensureSchema() {
+        try {
+            int from = pool.write(h -> SchemaMigrations.migrate(h.connection()));
+            if (from < SchemaMigrations.latestVersion()) {
+                System.out.println("DB schema migrated: v" + from + " -> v" + SchemaMigrations.latestVersion());
             }
-
-            conn.commit();
+            // на соединении писателя: оно точно видит только что созданные индексы
+            List<String> scans = pool.write(h -> SchemaMigrations.queriesWithoutIndex(h.connection()));
+            for (String q : scans) System.err.println("WARN: hot query does a full table scan: " + q);
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -97,165 +127,381 @@ public class SQLiteManager {
 
     // ===== keywords =====
 
-    public void upsertKeyword(Keyword kw) {
-        if (kw == null || kw.getKeyword() == null || kw.getKeyword().isBlank()) return;
+    public CompletableFuture<Void> upsertKeyword(Keyword kw) {
+        if (kw == null || kw.getKeyword() == null || kw.getKeyword().isBlank()) return CompletableFuture.completedFuture(null);
         String sql = "INSERT INTO keywords(keyword, introText, rewardText, materials) VALUES(?,?,?,?) " +
                 "ON CONFLICT(keyword) DO UPDATE SET introText=excluded.introText, " +
                 "rewardText=excluded.rewardText, materials=excluded.materials";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, normalizeKey(kw.getKeyword()));
-            ps.setString(2, nullIfBlank(kw.getIntroText()));
-            ps.setString(3, nullIfBlank(kw.getRewardText()));
-            ps.setString(4, materialsToCsv(kw.getMaterials()));
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        // та же нормализация, что и при чтении строки из БД
+        String csv = materialsToCsv(kw.getMaterials());
+        Keyword row = new Keyword(normalizeKey(kw.getKeyword()), nullIfBlank(kw.getIntroText()),
+                nullIfBlank(kw.getRewardText()), csvToList(csv));
+        synchronized (keywordsLock) {
+            keywords = keywords.with(row);
+            return submit("upsertKeyword", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                ps.setString(1, row.getKeyword());
+                ps.setString(2, row.getIntroText());
+                ps.setString(3, row.getRewardText());
+                ps.setString(4, csv);
+                ps.executeUpdate();
+                return null;
+            }, null);
         }
     }
 
+    /** Текущий индекс кодовых слов (без I/O). */
+    public KeywordIndex keywords() {
+        return keywords;
+    }
+
     public Keyword findKeywordByKey(String key) {
         if (key == null || key.isBlank()) return null;
-        String sql = "SELECT keyword, introText, rewardText, materials FROM keywords WHERE keyword = ?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, normalizeKey(key));
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    Keyword kw = new Keyword();
-                    kw.setKeyword(rs.getString("keyword"));
-                    kw.setIntroText(rs.getString("introText"));
-                    kw.setRewardText(rs.getString("rewardText"));
-                    kw.setMaterials(csvToList(rs.getString("materials")));
-                    return kw;
+        KeywordIndex.Entry e = keywords.get(key);
+        return e == null ? null : e.toKeyword();
+    }
+
+    public List<Keyword> listKeywords() {
+        String sql = "SELECT keyword, introText, rewardText, materials FROM keywords ORDER BY id DESC";
+        try {
+            return read("listKeywords", h -> {
+                List<Keyword> list = new ArrayList<>();
+                try (ResultSet rs = h.prepare(sql).executeQuery()) {
+                    while (rs.next()) list.add(readKeyword(rs));
                 }
-            }
+                return list;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return null;
+        return new ArrayList<>();
     }
 
-    public List<Keyword> listKeywords() {
-        List<Keyword> list = new ArrayList<>();
-        String sql = "SELECT keyword, introText, rewardText, materials FROM keywords ORDER BY id DESC";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                Keyword kw = new Keyword();
-                kw.setKeyword(rs.getString("keyword"));
-                kw.setIntroText(rs.getString("introText"));
-                kw.setRewardText(rs.getString("rewardText"));
-                kw.setMaterials(csvToList(rs.getString("materials")));
-                list.add(kw);
-            }
+    private static Keyword readKeyword(ResultSet rs) throws SQLException {
+        Keyword kw = new Keyword();
+        kw.setKeyword(rs.getString("keyword"));
+        kw.setIntroText(rs.getString("introText"));
+        kw.setRewardText(rs.getString("rewardText"));
+        kw.setMaterials(csvToList(rs.getString("materials")));
+        return kw;
+    }
+
+    // ===== Тарифы =====
+
+    public TariffIndex tariffs() {
+        return tariffs;
+    }
+
+    public List<Tariff> listTariffs() {
+        try {
+            return read("listTariffs", h -> {
+                List<Tariff> out = new ArrayList<>();
+                PreparedStatement ps = h.prepare("SELECT id, label, productName, priceKopecks, days, payUrl FROM tariffs ORDER BY id");
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new Tariff(rs.getInt(1), rs.getString(2), rs.getString(3),
+                                rs.getLong(4), rs.getInt(5), rs.getString(6)));
+                    }
+                }
+                return out;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return list;
+        return new ArrayList<>();
+    }
+
+    /** Добавляет или заменяет тариф по id; новый индекс виден сразу, запись в БД — через очередь писателя. */
+    public CompletableFuture<Void> upsertTariff(Tariff t) {
+        String sql = "INSERT INTO tariffs(id, label, productName, priceKopecks, days, payUrl) VALUES(?,?,?,?,?,?) " +
+                "ON CONFLICT(id) DO UPDATE SET label=excluded.label, productName=excluded.productName, " +
+                "priceKopecks=excluded.priceKopecks, days=excluded.days, payUrl=excluded.payUrl";
+        Tariff row = new Tariff(t.getId(), t.getName(), t.getProductName(), t.getPriceKopecks(), t.getPeriodDays(), t.getPayUrl());
+        synchronized (tariffsLock) {
+            tariffs = tariffs.with(row);
+            return submit("upsertTariff", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                ps.setInt(1, row.getId());
+                ps.setString(2, row.getName());
+                ps.setString(3, row.getProductName());
+                ps.setLong(4, row.getPriceKopecks());
+                ps.setInt(5, row.getPeriodDays());
+                ps.setString(6, row.getPayUrl());
+                ps.executeUpdate();
+                return null;
+            }, null);
+        }
+    }
+
+    public CompletableFuture<Void> deleteTariff(int id) {
+        synchronized (tariffsLock) {
+            tariffs = tariffs.without(id);
+            return submit("deleteTariff", h -> {
+                PreparedStatement ps = h.prepare("DELETE FROM tariffs WHERE id=?");
+                ps.setInt(1, id);
+                ps.executeUpdate();
+                return null;
+            }, null);
+        }
     }
 
     // ===== settings =====
 
-    public void setSetting(String key, String value) {
-        String sql = "INSERT INTO settings(key,value) VALUES(?,?) ON CONFLICT(key) DO UPDATE SET value=excluded.value";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, key);
-            ps.setString(2, value);
-            ps.executeUpdate();
+    private void loadSettings() {
+        try {
+            Map<String, String> all = read("loadSettings", h -> {
+                Map<String, String> m = new HashMap<>();
+                try (ResultSet rs = h.prepare("SELECT key, value FROM settings").executeQuery()) {
+                    while (rs.next()) m.put(rs.getString("key"), rs.getString("value"));
+                }
+                return m;
+            });
+            settings = new SettingsSnapshot(all);
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public String getSetting(String key, String def) {
-        String sql = "SELECT value FROM settings WHERE key=?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, key);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getString("value");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+    /** Текущий снимок настроек (без I/O). */
+    public SettingsSnapshot settings() {
+        return settings;
+    }
+
+    public CompletableFuture<Void> setSetting(String key, String value) {
+        Map<String, String> one = new HashMap<>();
+        one.put(key, value);
+        return setSettings(one);
+    }
+
+    /**
+     * Несколько ключей разом: новый снимок публикуется атомарно,
+     * в БД ключи пишутся одной командой (одним savepoint).
+     */
+    public CompletableFuture<Void> setSettings(Map<String, String> changes) {
+        String sql = "INSERT INTO settings(key,value) VALUES(?,?) ON CONFLICT(key) DO UPDATE SET value=excluded.value";
+        Map<String, String> copy = new HashMap<>(changes);
+        synchronized (settingsLock) {
+            settings = settings.with(copy);
+            // ставим в очередь под тем же замком — порядок записей в БД совпадает с порядком снимков
+            return submit("setSettings", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                for (Map.Entry<String, String> e : copy.entrySet()) {
+                    ps.setString(1, e.getKey());
+                    ps.setString(2, e.getValue());
+                    ps.executeUpdate();
+                }
+                return null;
+            }, null);
         }
-        return def;
+    }
+
+    public String getSetting(String key, String def) {
+        return settings.get(key, def);
     }
 
     // ===== subscriptions =====
 
-    public void grantSubscription(long userId, int days) {
+    /** Продление подписки пользователя на millis (от текущего срока, если он ещё не истёк, иначе от now). */
+    public static class Grant {
+        public final long userId;
+        public final long millis;
+        public Grant(long userId, long millis) {
+            this.userId = userId; this.millis = millis;
+        }
+        public static Grant days(long userId, int days) { return new Grant(userId, days * 24L * 60L * 60L * 1000L); }
+        public static Grant minutes(long userId, int minutes) { return new Grant(userId, minutes * 60L * 1000L); }
+    }
+
+    public CompletableFuture<Void> grantSubscription(long userId, int days) {
+        return grantSubscriptions(List.of(Grant.days(userId, days)));
+    }
+
+    public CompletableFuture<Void> grantSubscriptionMinutes(long userId, int minutes) {
+        return grantSubscriptions(List.of(Grant.minutes(userId, minutes)));
+    }
+
+    /**
+     * Несколько продлений одной записью писателя (один savepoint): либо все, либо ни одного.
+     * Ошибка записи завершает future исключением — выдачу нельзя молча потерять.
+     */
+    public CompletableFuture<Void> grantSubscriptions(Collection<Grant> grants) {
+        if (grants.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<Grant> copy = new ArrayList<>(grants);
+        return write("grantSubscriptions", h -> {
+            for (Grant g : copy) extendSubscription(h, g.userId, g.millis);
+            return null;
+        });
+    }
+
+    /** Новый срок считает сама БД одним upsert: max(now, текущий срок) + add — без отдельного чтения. */
+    private static void extendSubscription(SQLitePool.Handle h, long userId, long add) throws SQLException {
+        String sql = "INSERT INTO subscriptions(userId, expiresAtMillis) VALUES(?1, ?2 + ?3) " +
+                "ON CONFLICT(userId) DO UPDATE SET expiresAtMillis = max(?2, subscriptions.expiresAtMillis) + ?3";
         long now = System.currentTimeMillis();
-        long add = days * 24L * 60L * 60L * 1000L;
-        long newExp = now + add;
-        Long cur = getSubscriptionExpiry(userId);
-        if (cur != null && cur > now) newExp = cur + add;
-
-        String sql = "INSERT INTO subscriptions(userId, expiresAtMillis) VALUES(?,?) " +
-                "ON CONFLICT(userId) DO UPDATE SET expiresAtMillis=excluded.expiresAtMillis";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
+        PreparedStatement ps = h.prepare(sql);
+        ps.setLong(1, userId);
+        ps.setLong(2, now);
+        ps.setLong(3, add);
+        ps.executeUpdate();
+        // выдача доступа = ссылка в группу; считаем участником, пока chat_member не скажет иное
+        upsertGroupMember(h, userId, true, now);
+    }
+
+    public CompletableFuture<Void> revokeSubscription(long userId) {
+        return submit("revokeSubscription", h -> {
+            PreparedStatement ps = h.prepare("DELETE FROM subscriptions WHERE userId=?");
             ps.setLong(1, userId);
-            ps.setLong(2, newExp);
             ps.executeUpdate();
+            return null;
+        }, null);
+    }
+
+    public Long getSubscriptionExpiry(long userId) {
+        try {
+            return read("getSubscriptionExpiry", h -> {
+                PreparedStatement ps = h.prepare("SELECT expiresAtMillis FROM subscriptions WHERE userId=?");
+                ps.setLong(1, userId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getLong("expiresAtMillis") : null;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return null;
     }
 
-    public void grantSubscriptionMinutes(long userId, int minutes) {
-        long now = System.currentTimeMillis();
-        long add = minutes * 60L * 1000L;
-        long newExp = now + add;
-        Long cur = getSubscriptionExpiry(userId);
-        if (cur != null && cur > now) newExp = cur + add;
-
-        String sql = "INSERT INTO subscriptions(userId, expiresAtMillis) VALUES(?,?) " +
-                "ON CONFLICT(userId) DO UPDATE SET expiresAtMillis=excluded.expiresAtMillis";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, userId);
-            ps.setLong(2, newExp);
-            ps.executeUpdate();
+    // ===== group members / cursors =====
+
+    /** Истёкшая подписка участника группы. */
+    public static class Expiry {
+        public final long userId;
+        public final long expiresAtMillis;
+        public Expiry(long userId, long expiresAtMillis) {
+            this.userId = userId; this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /** CROSS JOIN фиксирует порядок: диапазон по индексу subscriptions(expiresAtMillis), затем поиск по PK. */
+    static final String SQL_EXPIRED_MEMBERS = "SELECT s.userId, s.expiresAtMillis FROM subscriptions s " +
+            "CROSS JOIN group_members g ON g.userId = s.userId " +
+            "WHERE s.expiresAtMillis > ? AND s.expiresAtMillis <= ? AND g.present = 1 " +
+            "ORDER BY s.expiresAtMillis";
+
+    public CompletableFuture<Void> setGroupMember(long userId, boolean present) {
+        return submit("setGroupMember", h -> {
+            upsertGroupMember(h, userId, present, System.currentTimeMillis());
+            return null;
+        }, null);
+    }
+
+    private static void upsertGroupMember(SQLitePool.Handle h, long userId, boolean present, long now) throws SQLException {
+        PreparedStatement ps = h.prepare("INSERT INTO group_members(userId, present, updatedAtMillis, removedAtMillis) VALUES(?,?,?,?) " +
+                "ON CONFLICT(userId) DO UPDATE SET present=excluded.present, updatedAtMillis=excluded.updatedAtMillis, " +
+                "removedAtMillis=excluded.removedAtMillis");
+        ps.setLong(1, userId);
+        ps.setInt(2, present ? 1 : 0);
+        ps.setLong(3, now);
+        if (present) ps.setNull(4, Types.INTEGER); else ps.setLong(4, now);
+        ps.executeUpdate();
+    }
+
+    /** Участники группы, чья подписка истекла в интервале (afterMillis, uptoMillis], по возрастанию срока. */
+    public List<Expiry> listExpiredMembers(long afterMillis, long uptoMillis) {
+        try {
+            return read("listExpiredMembers", h -> {
+                List<Expiry> out = new ArrayList<>();
+                PreparedStatement ps = h.prepare(SQL_EXPIRED_MEMBERS);
+                ps.setLong(1, afterMillis);
+                ps.setLong(2, uptoMillis);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) out.add(new Expiry(rs.getLong(1), rs.getLong(2)));
+                }
+                return out;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return new ArrayList<>();
     }
 
-    public void revokeSubscription(long userId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement("DELETE FROM subscriptions WHERE userId=?")) {
-            ps.setLong(1, userId);
-            ps.executeUpdate();
+    static final String SQL_COUNT_EXPIRED_MEMBERS = "SELECT count(*) FROM subscriptions s " +
+            "CROSS JOIN group_members g ON g.userId = s.userId " +
+            "WHERE s.expiresAtMillis > ? AND s.expiresAtMillis <= ? AND g.present = 1";
+
+    /**
+     * Сколько участников группы всё ещё в ней, хотя подписка истекла в (afterMillis, nowMillis] (для метрик).
+     * Нижняя граница — курсор: диапазон по индексу не растёт вместе с историей истёкших подписок.
+     */
+    public long countExpiredMembers(long afterMillis, long nowMillis) {
+        try {
+            return read("countExpiredMembers", h -> {
+                PreparedStatement ps = h.prepare(SQL_COUNT_EXPIRED_MEMBERS);
+                ps.setLong(1, afterMillis);
+                ps.setLong(2, nowMillis);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : 0L;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return 0;
     }
 
-    public Long getSubscriptionExpiry(long userId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement("SELECT expiresAtMillis FROM subscriptions WHERE userId=?")) {
-            ps.setLong(1, userId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getLong("expiresAtMillis");
-            }
+    static final String SQL_NEXT_MEMBER_EXPIRY = "SELECT s.expiresAtMillis FROM subscriptions s " +
+            "CROSS JOIN group_members g ON g.userId = s.userId " +
+            "WHERE s.expiresAtMillis > ? AND g.present = 1 ORDER BY s.expiresAtMillis LIMIT 1";
+
+    /** Ближайший срок окончания подписки среди участников группы после afterMillis; null — таких нет. */
+    public Long nextMemberExpiry(long afterMillis) {
+        try {
+            return read("nextMemberExpiry", h -> {
+                PreparedStatement ps = h.prepare(SQL_NEXT_MEMBER_EXPIRY);
+                ps.setLong(1, afterMillis);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : null;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    public List<Long> listExpiredSince(long timestampMillis) {
-        List<Long> list = new ArrayList<>();
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement("SELECT userId FROM subscriptions WHERE expiresAtMillis<?")) {
-            ps.setLong(1, timestampMillis);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) list.add(rs.getLong("userId"));
-            }
+    public long getCursor(String name, long def) {
+        try {
+            return read("getCursor", h -> {
+                PreparedStatement ps = h.prepare("SELECT value FROM job_cursors WHERE name=?");
+                ps.setString(1, name);
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() ? rs.getLong(1) : def;
+                }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return list;
+        return def;
+    }
+
+    public CompletableFuture<Void> setCursor(String name, long value) {
+        return submit("setCursor", h -> {
+            PreparedStatement ps = h.prepare("INSERT INTO job_cursors(name, value) VALUES(?,?) " +
+                    "ON CONFLICT(name) DO UPDATE SET value=excluded.value");
+            ps.setString(1, name);
+            ps.setLong(2, value);
+            ps.executeUpdate();
+            return null;
+        }, null);
     }
 
     // ===== orders / webhooks =====
 
-    public String createPendingOrder(long userId, int plan, int days) {
+    public CompletableFuture<String> createPendingOrder(long userId, int plan, int days) {
         String orderId = UUID.randomUUID().toString().replace("-", "");
         String sql = "INSERT INTO orders(orderId, userId, plan, days, createdAtMillis, paidAtMillis) VALUES(?,?,?,?,?,NULL)";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
+        return submit("createPendingOrder", h -> {
+            PreparedStatement ps = h.prepare(sql);
             ps.setString(1, orderId);
             ps.setLong(2, userId);
             ps.setInt(3, plan);
@@ -263,19 +509,18 @@ public class SQLiteManager {
             ps.setLong(5, System.currentTimeMillis());
             ps.executeUpdate();
             return orderId;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return orderId; // даже если не вставилось, вернём id для диагностики
-        }
+        }, orderId); // даже если не вставилось, вернём id для диагностики
     }
 
     public OrderInfo getOrder(String orderId) {
         if (orderId == null || orderId.isBlank()) return null;
         String sql = "SELECT userId, plan, days, createdAtMillis, paidAtMillis FROM orders WHERE orderId=?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, orderId);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
+        try {
+            return read("getOrder", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                ps.setString(1, orderId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
                     long paid = rs.getLong("paidAtMillis");
                     Long paidNullable = rs.wasNull() ? null : paid;
                     return new OrderInfo(
@@ -287,38 +532,142 @@ public class SQLiteManager {
                             paidNullable
                     );
                 }
-            }
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
         return null;
     }
 
-    public boolean markOrderPaid(String orderId) {
+    public CompletableFuture<Boolean> markOrderPaid(String orderId) {
         String sql = "UPDATE orders SET paidAtMillis = COALESCE(paidAtMillis, ?) WHERE orderId = ?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
+        return submit("markOrderPaid", h -> {
+            PreparedStatement ps = h.prepare(sql);
             ps.setLong(1, System.currentTimeMillis());
             ps.setString(2, orderId);
             return ps.executeUpdate() > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+        }, false);
+    }
+
+    /** Пачка самых старых отметок; подзапрос идёт по idx_webhooks_processed_at. */
+    static final String SQL_PRUNE_WEBHOOKS = "DELETE FROM processed_webhooks WHERE rowid IN " +
+            "(SELECT rowid FROM processed_webhooks WHERE processed_at<? ORDER BY processed_at LIMIT ?)";
+
+    /** Удаляет до limit отметок старше beforeMillis; возвращает число удалённых (см. {@link IdempotencyStore}). */
+    public CompletableFuture<Integer> pruneProcessedWebhooks(long beforeMillis, int limit) {
+        return submit("pruneProcessedWebhooks", h -> {
+            PreparedStatement ps = h.prepare(SQL_PRUNE_WEBHOOKS);
+            ps.setLong(1, beforeMillis);
+            ps.setInt(2, limit);
+            return ps.executeUpdate();
+        }, 0);
+    }
+
+    // ===== fulfillment outbox =====
+
+    /** Задание на выдачу оплаченного доступа: days > 0 — подписка на дни, иначе minutes — тестовый доступ. */
+    public static class FulfillmentJob {
+        public final long id;
+        public final long userId;
+        public final int days;
+        public final int minutes;
+        public final int attempts;
+        public final long nextAttemptAtMillis;
+        public FulfillmentJob(long id, long userId, int days, int minutes, int attempts, long nextAttemptAtMillis) {
+            this.id = id; this.userId = userId; this.days = days; this.minutes = minutes;
+            this.attempts = attempts; this.nextAttemptAtMillis = nextAttemptAtMillis;
         }
     }
 
-    /** true — если событие видим впервые. */
-    public boolean markWebhookProcessed(String provider, String eventId) {
-        if (provider == null || eventId == null) return false;
-        String sql = "INSERT OR IGNORE INTO processed_webhooks(provider, event_id, processed_at) VALUES(?,?,?)";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
+    static final String SQL_PENDING_FULFILLMENTS = "SELECT id, userId, days, minutes, attempts, nextAttemptAtMillis " +
+            "FROM fulfillment_jobs WHERE doneAtMillis IS NULL ORDER BY nextAttemptAtMillis";
+
+    /**
+     * Отметка идемпотентности и задание на выдачу — одной транзакцией.
+     * null — событие уже обрабатывалось. Ошибки БД не глотаются: вебхук должен ответить 500, чтобы его повторили.
+     */
+    public CompletableFuture<FulfillmentJob> enqueueFulfillment(String provider, String eventId, long userId, int days, int minutes) {
+        return write("enqueueFulfillment", h -> {
+            long now = System.currentTimeMillis();
+            if (eventId != null && !eventId.isBlank()) {
+                PreparedStatement mark = h.prepare("INSERT OR IGNORE INTO processed_webhooks(provider, event_id, processed_at) VALUES(?,?,?)");
+                mark.setString(1, provider);
+                mark.setString(2, eventId);
+                mark.setLong(3, now);
+                if (mark.executeUpdate() == 0) return null;
+            }
+            PreparedStatement ps = h.prepare("INSERT INTO fulfillment_jobs(provider, event_id, userId, days, minutes, nextAttemptAtMillis, createdAtMillis) " +
+                    "VALUES(?,?,?,?,?,?,?)");
             ps.setString(1, provider);
             ps.setString(2, eventId);
-            ps.setLong(3, System.currentTimeMillis());
-            return ps.executeUpdate() > 0;
+            ps.setLong(3, userId);
+            ps.setInt(4, days);
+            ps.setInt(5, minutes);
+            ps.setLong(6, now);
+            ps.setLong(7, now);
+            ps.executeUpdate();
+            try (ResultSet rs = h.prepare("SELECT last_insert_rowid()").executeQuery()) {
+                rs.next();
+                return new FulfillmentJob(rs.getLong(1), userId, days, minutes, 0, now);
+            }
+        });
+    }
+
+    public List<FulfillmentJob> listPendingFulfillments() {
+        try {
+            return read("listPendingFulfillments", h -> {
+                List<FulfillmentJob> out = new ArrayList<>();
+                try (ResultSet rs = h.prepare(SQL_PENDING_FULFILLMENTS).executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new FulfillmentJob(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getInt(4),
+                                rs.getInt(5), rs.getLong(6)));
+                    }
+                }
+                return out;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
-            return false;
         }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Продление подписки по заданию и флаг granted — одной транзакцией, поэтому повтор задания
+     * после сбоя уведомления не продлевает подписку второй раз. Ошибки БД пробрасываются.
+     */
+    public CompletableFuture<Void> grantFulfillment(FulfillmentJob job) {
+        return write("grantFulfillment", h -> {
+            PreparedStatement mark = h.prepare("UPDATE fulfillment_jobs SET granted=1 WHERE id=? AND granted=0");
+            mark.setLong(1, job.id);
+            if (mark.executeUpdate() > 0) {
+                Grant g = job.days > 0 ? Grant.days(job.userId, job.days) : Grant.minutes(job.userId, job.minutes);
+                extendSubscription(h, g.userId, g.millis);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> completeFulfillment(long jobId, String error) {
+        return submit("completeFulfillment", h -> {
+            PreparedStatement ps = h.prepare("UPDATE fulfillment_jobs SET doneAtMillis=?, lastError=? WHERE id=?");
+            ps.setLong(1, System.currentTimeMillis());
+            ps.setString(2, error);
+            ps.setLong(3, jobId);
+            ps.executeUpdate();
+            return null;
+        }, null);
+    }
+
+    public CompletableFuture<Void> retryFulfillment(long jobId, int attempts, long nextAttemptAtMillis, String error) {
+        return submit("retryFulfillment", h -> {
+            PreparedStatement ps = h.prepare("UPDATE fulfillment_jobs SET attempts=?, nextAttemptAtMillis=?, lastError=? WHERE id=?");
+            ps.setInt(1, attempts);
+            ps.setLong(2, nextAttemptAtMillis);
+            ps.setString(3, error);
+            ps.setLong(4, jobId);
+            ps.executeUpdate();
+            return null;
+        }, null);
     }
 
     // ===== drip-campaigns =====
@@ -332,55 +681,223 @@ public class SQLiteManager {
         }
     }
 
-    public void startOrResetDrip(long userId, long nextAtMillis, int step) {
+    /** Изменения drip_campaigns — для планировщика в памяти (см. {@link DripScheduler}). */
+    public interface DripListener {
+        void dripSaved(Drip d);
+        void dripUpdated(Drip d);
+        void dripDeleted(long userId);
+    }
+
+    private static final DripListener NO_DRIP_LISTENER = new DripListener() {
+        @Override public void dripSaved(Drip d) {}
+        @Override public void dripUpdated(Drip d) {}
+        @Override public void dripDeleted(long userId) {}
+    };
+
+    /** Слушатель вызывается под тем же замком, что и постановка записи, — порядок событий совпадает с порядком в БД. */
+    private final Object dripLock = new Object();
+    private volatile DripListener dripListener = NO_DRIP_LISTENER;
+
+    public void setDripListener(DripListener listener) {
+        this.dripListener = listener == null ? NO_DRIP_LISTENER : listener;
+    }
+
+    public CompletableFuture<Void> startOrResetDrip(long userId, long nextAtMillis, int step) {
         String sql = "INSERT INTO drip_campaigns(userId, nextAtMillis, step) VALUES(?,?,?) " +
                 "ON CONFLICT(userId) DO UPDATE SET nextAtMillis=excluded.nextAtMillis, step=excluded.step";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, userId);
-            ps.setLong(2, nextAtMillis);
-            ps.setInt(3, step);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        synchronized (dripLock) {
+            dripListener.dripSaved(new Drip(userId, nextAtMillis, step));
+            return submit("startOrResetDrip", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                ps.setLong(1, userId);
+                ps.setLong(2, nextAtMillis);
+                ps.setInt(3, step);
+                ps.executeUpdate();
+                return null;
+            }, null);
         }
     }
 
-    public void updateDrip(long userId, long nextAtMillis, int step) {
+    public CompletableFuture<Void> updateDrip(long userId, long nextAtMillis, int step) {
         String sql = "UPDATE drip_campaigns SET nextAtMillis=?, step=? WHERE userId=?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, nextAtMillis);
-            ps.setInt(2, step);
-            ps.setLong(3, userId);
-            ps.executeUpdate();
+        synchronized (dripLock) {
+            dripListener.dripUpdated(new Drip(userId, nextAtMillis, step));
+            return submit("updateDrip", h -> {
+                PreparedStatement ps = h.prepare(sql);
+                ps.setLong(1, nextAtMillis);
+                ps.setInt(2, step);
+                ps.setLong(3, userId);
+                ps.executeUpdate();
+                return null;
+            }, null);
+        }
+    }
+
+    public CompletableFuture<Void> deleteDrip(long userId) {
+        synchronized (dripLock) {
+            dripListener.dripDeleted(userId);
+            return submit("deleteDrip", h -> {
+                PreparedStatement ps = h.prepare("DELETE FROM drip_campaigns WHERE userId=?");
+                ps.setLong(1, userId);
+                ps.executeUpdate();
+                return null;
+            }, null);
+        }
+    }
+
+    public List<Drip> listDueDrips(long nowMillis, int limit) {
+        String sql = "SELECT userId, nextAtMillis, step FROM drip_campaigns WHERE nextAtMillis<=? ORDER BY nextAtMillis ASC LIMIT ?";
+        try {
+            return read("listDueDrips", h -> {
+                List<Drip> out = new ArrayList<>();
+                PreparedStatement ps = h.prepare(sql);
+                ps.setLong(1, nowMillis);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new Drip(rs.getLong("userId"), rs.getLong("nextAtMillis"), rs.getInt("step")));
+                    }
+                }
+                return out;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return new ArrayList<>();
     }
 
-    public void deleteDrip(long userId) {
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement("DELETE FROM drip_campaigns WHERE userId=?")) {
-            ps.setLong(1, userId);
-            ps.executeUpdate();
+    /** Созревшие шаги, разделённые по состоянию подписки. */
+    public static class DueDrips {
+        /** Подписки нет или истекла — шлём очередное сообщение. */
+        public final List<Drip> send;
+        /** Подписка активна — кампанию удаляем без отправки. */
+        public final List<Long> cancel;
+        public DueDrips(List<Drip> send, List<Long> cancel) {
+            this.send = send; this.cancel = cancel;
+        }
+    }
+
+    static final String SQL_SPLIT_DUE_DRIPS = "SELECT d.userId, s.expiresAtMillis FROM drip_campaigns d " +
+            "LEFT JOIN subscriptions s ON s.userId = d.userId " +
+            "WHERE d.userId IN (SELECT value FROM json_each(?))";
+
+    /**
+     * Один запрос на всю пачку: drip_campaigns LEFT JOIN subscriptions по списку userId (json_each).
+     * В результат попадают те же объекты Drip, что переданы (строки, удалённые из БД, отбрасываются).
+     */
+    public DueDrips splitDueDrips(List<Drip> due, long nowMillis) {
+        List<Drip> send = new ArrayList<>();
+        List<Long> cancel = new ArrayList<>();
+        if (due.isEmpty()) return new DueDrips(send, cancel);
+        Map<Long, Drip> byUser = new HashMap<>();
+        StringBuilder ids = new StringBuilder("[");
+        for (Drip d : due) {
+            if (byUser.put(d.userId, d) == null) ids.append(ids.length() > 1 ? "," : "").append(d.userId);
+        }
+        ids.append(']');
+        try {
+            read("splitDueDrips", h -> {
+                PreparedStatement ps = h.prepare(SQL_SPLIT_DUE_DRIPS);
+                ps.setString(1, ids.toString());
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        long userId = rs.getLong(1);
+                        long exp = rs.getLong(2);
+                        boolean active = !rs.wasNull() && exp > nowMillis;
+                        if (active) cancel.add(userId);
+                        else send.add(byUser.get(userId));
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        return new DueDrips(send, cancel);
     }
 
-    public List<Drip> listDueDrips(long nowMillis, int limit) {
-        List<Drip> out = new ArrayList<>();
-        String sql = "SELECT userId, nextAtMillis, step FROM drip_campaigns WHERE nextAtMillis<=? ORDER BY nextAtMillis ASC LIMIT ?";
-        try (Connection conn = connect(); PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, nowMillis);
-            ps.setInt(2, limit);
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    out.add(new Drip(rs.getLong("userId"), rs.getLong("nextAtMillis"), rs.getInt("step")));
+    /** Переход на следующий шаг и удаление кампаний для всей пачки — одной транзакцией. */
+    public CompletableFuture<Void> applyDripChanges(List<Drip> advanced, Collection<Long> deleted) {
+        if (advanced.isEmpty() && deleted.isEmpty()) return CompletableFuture.completedFuture(null);
+        List<Drip> updates = new ArrayList<>(advanced);
+        List<Long> deletes = new ArrayList<>(deleted);
+        synchronized (dripLock) {
+            for (Drip d : updates) dripListener.dripUpdated(d);
+            for (Long userId : deletes) dripListener.dripDeleted(userId);
+            return submit("applyDripChanges", h -> {
+                PreparedStatement up = h.prepare("UPDATE drip_campaigns SET nextAtMillis=?, step=? WHERE userId=?");
+                for (Drip d : updates) {
+                    up.setLong(1, d.nextAtMillis);
+                    up.setInt(2, d.step);
+                    up.setLong(3, d.userId);
+                    up.addBatch();
                 }
-            }
+                if (!updates.isEmpty()) up.executeBatch();
+                PreparedStatement del = h.prepare("DELETE FROM drip_campaigns WHERE userId=?");
+                for (Long userId : deletes) {
+                    del.setLong(1, userId);
+                    del.addBatch();
+                }
+                if (!deletes.isEmpty()) del.executeBatch();
+                return null;
+            }, null);
+        }
+    }
+
+    // ===== telegram file_id cache =====
+
+    public static class CachedFileId {
+        public final String path;
+        public final String kind;
+        public final long size;
+        public final long mtimeMillis;
+        public final String fileId;
+        public CachedFileId(String path, String kind, long size, long mtimeMillis, String fileId) {
+            this.path = path; this.kind = kind; this.size = size; this.mtimeMillis = mtimeMillis; this.fileId = fileId;
+        }
+    }
+
+    public List<CachedFileId> listCachedFileIds() {
+        try {
+            return read("listCachedFileIds", h -> {
+                List<CachedFileId> out = new ArrayList<>();
+                try (ResultSet rs = h.prepare("SELECT path, kind, size, mtimeMillis, fileId FROM telegram_files").executeQuery()) {
+                    while (rs.next()) {
+                        out.add(new CachedFileId(rs.getString("path"), rs.getString("kind"),
+                                rs.getLong("size"), rs.getLong("mtimeMillis"), rs.getString("fileId")));
+                    }
+                }
+                return out;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return out;
+        return new ArrayList<>();
+    }
+
+    public CompletableFuture<Void> saveCachedFileId(CachedFileId f) {
+        String sql = "INSERT INTO telegram_files(path, kind, size, mtimeMillis, fileId) VALUES(?,?,?,?,?) " +
+                "ON CONFLICT(path, kind) DO UPDATE SET size=excluded.size, mtimeMillis=excluded.mtimeMillis, fileId=excluded.fileId";
+        return submit("saveCachedFileId", h -> {
+            PreparedStatement ps = h.prepare(sql);
+            ps.setString(1, f.path);
+            ps.setString(2, f.kind);
+            ps.setLong(3, f.size);
+            ps.setLong(4, f.mtimeMillis);
+            ps.setString(5, f.fileId);
+            ps.executeUpdate();
+            return null;
+        }, null);
+    }
+
+    public CompletableFuture<Void> deleteCachedFileId(String path, String kind) {
+        return submit("deleteCachedFileId", h -> {
+            PreparedStatement ps = h.prepare("DELETE FROM telegram_files WHERE path=? AND kind=?");
+            ps.setString(1, path);
+            ps.setString(2, kind);
+            ps.executeUpdate();
+            return null;
+        }, null);
     }
 
     // ===== utils =====
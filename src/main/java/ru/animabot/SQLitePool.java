@@ -0,0 +1,225 @@
+package ru.animabot;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Долгоживущие соединения с SQLite:
+ *  - одно соединение-писатель (SQLite допускает только одного писателя);
+ *  - небольшой пул соединений только для чтения (PRAGMA query_only).
+ * PRAGMA выполняются один раз при открытии соединения,
+ * PreparedStatement кэшируются на соединение.
+ *
+ * Все записи идут через очередь единственного потока-писателя: он забирает
+ * накопившиеся команды пачкой и коммитит их одной транзакцией (group commit).
+ * Каждая команда выполняется под своим SAVEPOINT, поэтому ошибка одной
+ * не откатывает соседей по пачке.
+ */
+final class SQLitePool implements AutoCloseable {
+
+    /** Работа с БД на выданном соединении. */
+    interface Work<T> {
+        T run(Handle h) throws SQLException;
+    }
+
+    /** Соединение + кэш подготовленных запросов. В каждый момент принадлежит одному потоку. */
+    static final class Handle {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        private Handle(Connection conn) { this.conn = conn; }
+
+        /** Подготовленный запрос из кэша соединения (параметры и batch сброшены). */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            } else {
+                ps.clearParameters();
+                ps.clearBatch(); // после ошибки посреди executeBatch в нём могли остаться строки
+            }
+            return ps;
+        }
+
+        Connection connection() { return conn; }
+
+        private void close() {
+            for (PreparedStatement ps : statements.values()) {
+                try { ps.close(); } catch (SQLException ignore) {}
+            }
+            statements.clear();
+            try { conn.close(); } catch (SQLException ignore) {}
+        }
+    }
+
+    /** Команда записи + future, который завершится после коммита её пачки. */
+    private static final class WriteOp<T> {
+        final Work<T> work;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T result;
+        Throwable error;
+        WriteOp(Work<T> work) { this.work = work; }
+
+        void complete() {
+            if (error != null) future.completeExceptionally(error);
+            else future.complete(result);
+        }
+    }
+
+    /** Максимум команд в одной транзакции. */
+    private static final int MAX_BATCH = 256;
+
+    /** Маркер остановки потока-писателя. */
+    private final WriteOp<Void> stop = new WriteOp<>(h -> null);
+
+    private final Handle writer;
+    private final BlockingQueue<WriteOp<?>> writes = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private volatile boolean closed;
+    private volatile boolean writerStopped;
+    private final BlockingQueue<Handle> readers;
+    private final List<Handle> all = new ArrayList<>();
+
+    SQLitePool(String dbUrl, int readerCount) throws SQLException {
+        this.writer = open(dbUrl, false);
+        writer.connection().setAutoCommit(false);
+        all.add(writer);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        for (int i = 0; i < Math.max(1, readerCount); i++) {
+            Handle h = open(dbUrl, true);
+            all.add(h);
+            readers.add(h);
+        }
+        this.writerThread = new Thread(this::runWriter, "sqlite-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    private static Handle open(String dbUrl, boolean readOnly) throws SQLException {
+        Connection conn = DriverManager.getConnection(dbUrl);
+        try (Statement st = conn.createStatement()) {
+            if (!readOnly) st.execute("PRAGMA journal_mode=WAL;");
+            st.execute("PRAGMA busy_timeout=5000;");
+            st.execute("PRAGMA synchronous=NORMAL;");
+            if (readOnly) st.execute("PRAGMA query_only=ON;");
+        }
+        return new Handle(conn);
+    }
+
+    /** Чтение на свободном соединении из пула (ждём, если все заняты). */
+    <T> T read(Work<T> work) throws SQLException {
+        Handle h;
+        try {
+            h = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a read connection", e);
+        }
+        try {
+            return work.run(h);
+        } finally {
+            readers.offer(h);
+        }
+    }
+
+    /**
+     * Ставит запись в очередь писателя. Future завершается, когда пачка
+     * с этой командой закоммичена (или с ошибкой, если команда/коммит упали).
+     */
+    <T> CompletableFuture<T> submit(Work<T> work) {
+        WriteOp<T> op = new WriteOp<>(work);
+        if (closed || writerStopped) {
+            op.future.completeExceptionally(new SQLException("pool is closed"));
+            return op.future;
+        }
+        writes.add(op);
+        // писатель мог остановиться между проверкой и add — тогда очередь уже никто не разберёт
+        if (writerStopped && writes.remove(op)) {
+            op.future.completeExceptionally(new SQLException("pool is closed"));
+        }
+        return op.future;
+    }
+
+    /** Синхронная запись: ждём коммита. */
+    <T> T write(Work<T> work) throws SQLException {
+        if (Thread.currentThread() == writerThread) {
+            throw new IllegalStateException("synchronous write from the writer thread would deadlock");
+        }
+        try {
+            return submit(work).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    private void runWriter() {
+        List<WriteOp<?>> batch = new ArrayList<>(MAX_BATCH);
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                try {
+                    batch.add(writes.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                writes.drainTo(batch, MAX_BATCH - 1);
+                stopping = batch.remove(stop);
+                if (!batch.isEmpty()) commitBatch(batch);
+                batch.clear();
+            }
+        } finally {
+            // писатель больше не работает (штатно или нет): новые записи сразу отклоняем,
+            // а недоделанную пачку и всё, что осталось в очереди, — завершаем ошибкой, чтобы никто не ждал вечно
+            writerStopped = true;
+            SQLException gone = new SQLException("pool is closed");
+            for (WriteOp<?> op : batch) op.future.completeExceptionally(gone);
+            for (WriteOp<?> op; (op = writes.poll()) != null; ) {
+                op.future.completeExceptionally(gone);
+            }
+        }
+    }
+
+    private void commitBatch(List<WriteOp<?>> batch) {
+        Connection conn = writer.connection();
+        try {
+            for (WriteOp<?> op : batch) runInSavepoint(conn, op);
+            conn.commit();
+        } catch (Throwable e) {
+            // в том числе Error из work или драйвера: поток-писатель должен пережить любую команду
+            try { conn.rollback(); } catch (SQLException ignore) {}
+            for (WriteOp<?> op : batch) op.error = e;
+        }
+        for (WriteOp<?> op : batch) op.complete();
+    }
+
+    private <T> void runInSavepoint(Connection conn, WriteOp<T> op) throws SQLException {
+        Savepoint sp = conn.setSavepoint();
+        try {
+            op.result = op.work.run(writer);
+            conn.releaseSavepoint(sp);
+        } catch (Throwable e) {
+            conn.rollback(sp);
+            conn.releaseSavepoint(sp);
+            op.error = e;
+        }
+    }
+
+    /** Дописывает очередь, останавливает писателя и закрывает соединения. */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        writes.add(stop);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Handle h : all) h.close();
+    }
+}
@@ -0,0 +1,244 @@
+package ru.animabot;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Версионирование схемы через PRAGMA user_version.
+ * Миграции применяются строго по порядку, все недостающие — в одной транзакции
+ * вместе с новым user_version: либо база получает всю пачку, либо ничего.
+ * Новая миграция — только добавлением в конец MIGRATIONS, уже выпущенные не меняем.
+ */
+final class SchemaMigrations {
+
+    private interface Migration {
+        void apply(Statement st) throws SQLException;
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            // 1: исходные таблицы (IF NOT EXISTS — базы, созданные до версионирования, имеют user_version=0)
+            SchemaMigrations::baseline,
+            // 2: индексы для запросов планировщиков
+            st -> {
+                st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_subscriptions_expires ON subscriptions(expiresAtMillis)");
+                st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_drip_next ON drip_campaigns(nextAtMillis)");
+                st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_orders_user ON orders(userId)");
+                st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_webhooks_processed_at ON processed_webhooks(processed_at)");
+            },
+            // 3: кто сейчас в закрытой группе + курсоры фоновых задач
+            st -> {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS group_members (" +
+                        "userId INTEGER PRIMARY KEY," +
+                        "present INTEGER NOT NULL," +
+                        "updatedAtMillis INTEGER NOT NULL," +
+                        "removedAtMillis INTEGER" +
+                        ");");
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS job_cursors (" +
+                        "name TEXT PRIMARY KEY," +
+                        "value INTEGER NOT NULL" +
+                        ");");
+                // До журнала истёкших удаляли каждые 30 минут — в группе остались только действующие подписчики
+                st.executeUpdate("INSERT OR IGNORE INTO group_members(userId, present, updatedAtMillis) " +
+                        "SELECT userId, 1, CAST(strftime('%s','now') AS INTEGER) * 1000 FROM subscriptions " +
+                        "WHERE expiresAtMillis >= CAST(strftime('%s','now') AS INTEGER) * 1000");
+            },
+            // 4: outbox выдачи оплаченного доступа (пишется вместе с отметкой идемпотентности)
+            st -> {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS fulfillment_jobs (" +
+                        "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                        "provider TEXT NOT NULL," +
+                        "event_id TEXT," +
+                        "userId INTEGER NOT NULL," +
+                        "days INTEGER NOT NULL," +
+                        "minutes INTEGER NOT NULL," +
+                        "granted INTEGER NOT NULL DEFAULT 0," +
+                        "attempts INTEGER NOT NULL DEFAULT 0," +
+                        "nextAttemptAtMillis INTEGER NOT NULL," +
+                        "createdAtMillis INTEGER NOT NULL," +
+                        "doneAtMillis INTEGER," +
+                        "lastError TEXT" +
+                        ");");
+                st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_fulfillment_pending " +
+                        "ON fulfillment_jobs(nextAttemptAtMillis) WHERE doneAtMillis IS NULL");
+            },
+            // 5: тарифы — строками таблицы вместо tariffN_* в settings (уже настроенные значения переносятся)
+            SchemaMigrations::tariffs
+    );
+
+    /**
+     * Запросы, которые выполняются по расписанию или на каждом платеже:
+     * их план обязан идти по индексу, а не сканировать таблицу.
+     */
+    static final List<String> HOT_QUERIES = List.of(
+            SQLiteManager.SQL_EXPIRED_MEMBERS,
+            SQLiteManager.SQL_NEXT_MEMBER_EXPIRY,
+            SQLiteManager.SQL_COUNT_EXPIRED_MEMBERS,
+            SQLiteManager.SQL_SPLIT_DUE_DRIPS,
+            SQLiteManager.SQL_PRUNE_WEBHOOKS,
+            SQLiteManager.SQL_PENDING_FULFILLMENTS
+    );
+
+    private static final Pattern LABEL_PRICE =
+            Pattern.compile("([0-9][0-9\\s.,]*)\\s*(?:₽|руб|RUB)?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    private SchemaMigrations() {}
+
+    static int latestVersion() {
+        return MIGRATIONS.size();
+    }
+
+    /** Применяет недостающие миграции; вызывается на соединении писателя внутри его транзакции. */
+    static int migrate(Connection conn) throws SQLException {
+        int version = userVersion(conn);
+        if (version > MIGRATIONS.size()) {
+            throw new SQLException("Database schema version " + version + " is newer than supported " + MIGRATIONS.size());
+        }
+        try (Statement st = conn.createStatement()) {
+            for (int i = version; i < MIGRATIONS.size(); i++) {
+                MIGRATIONS.get(i).apply(st);
+            }
+            if (version < MIGRATIONS.size()) st.executeUpdate("PRAGMA user_version = " + MIGRATIONS.size());
+        }
+        return version;
+    }
+
+    static int userVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement(); ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Запросы из HOT_QUERIES, план которых сканирует таблицу без индекса (пусто — всё в порядке).
+     * SCAN по виртуальной таблице (json_each от параметра) — перебор переданного списка, а не таблицы.
+     */
+    static List<String> queriesWithoutIndex(Connection conn) throws SQLException {
+        List<String> bad = new ArrayList<>();
+        for (String sql : HOT_QUERIES) {
+            try (PreparedStatement ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    if (detail != null && detail.startsWith("SCAN") && !detail.contains("USING")
+                            && !detail.contains("VIRTUAL TABLE")) {
+                        bad.add(sql + " -> " + detail);
+                        break;
+                    }
+                }
+            }
+        }
+        return bad;
+    }
+
+    private static void tariffs(Statement st) throws SQLException {
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS tariffs (" +
+                "id INTEGER PRIMARY KEY," +
+                "label TEXT NOT NULL," +
+                "productName TEXT NOT NULL," +
+                "priceKopecks INTEGER NOT NULL," +
+                "days INTEGER NOT NULL," +
+                "payUrl TEXT NOT NULL" +
+                ");");
+
+        Map<String, String> settings = new HashMap<>();
+        try (ResultSet rs = st.executeQuery("SELECT key, value FROM settings WHERE key LIKE 'tariff%'")) {
+            while (rs.next()) {
+                String v = rs.getString(2);
+                if (v != null && !v.isBlank()) settings.put(rs.getString(1), v.trim());
+            }
+        }
+        // {label, days, payUrl, productName, priceRub} — значения по умолчанию из seedDefaults на момент миграции
+        String[][] defaults = {
+                {"1 МЕС • 1299 ₽",   "30",  "https://soulway.payform.ru/4e9isVQ/", "Услуги доступа к клубу Путь Души срок 1 месяц",   "1299"},
+                {"3 МЕС • 3599 ₽",   "90",  "https://soulway.payform.ru/en9it1j/", "Услуги доступа к клубу Путь Души срок 3 месяца",  "3599"},
+                {"12 МЕС • 12900 ₽", "365", "https://soulway.payform.ru/kr9it4z/", "Услуги доступа к клубу Путь Души срок 12 месяцев", "12900"},
+        };
+        try (PreparedStatement ps = st.getConnection().prepareStatement(
+                "INSERT OR IGNORE INTO tariffs(id, label, productName, priceKopecks, days, payUrl) VALUES(?,?,?,?,?,?)")) {
+            for (int i = 0; i < defaults.length; i++) {
+                String[] d = defaults[i];
+                String prefix = "tariff" + (i + 1) + "_";
+                String label = settings.getOrDefault(prefix + "label", d[0]);
+                int days;
+                try { days = Integer.parseInt(settings.getOrDefault(prefix + "days", d[1])); }
+                catch (NumberFormatException e) { days = Integer.parseInt(d[1]); }
+                ps.setInt(1, i + 1);
+                ps.setString(2, label);
+                ps.setString(3, d[3]);
+                ps.setLong(4, labelPriceRub(label, Integer.parseInt(d[4])) * 100L);
+                ps.setInt(5, days);
+                ps.setString(6, settings.getOrDefault(prefix + "url", d[2]));
+                ps.executeUpdate();
+            }
+        }
+        // таблица tariffs теперь единственный источник — старые ключи не оставляем в /settings
+        st.executeUpdate("DELETE FROM settings WHERE key IN (" +
+                "'tariff1_label','tariff1_days','tariff1_url'," +
+                "'tariff2_label','tariff2_days','tariff2_url'," +
+                "'tariff3_label','tariff3_days','tariff3_url')");
+    }
+
+    /** Цена в рублях в конце лейбла («1 МЕС • 1299 ₽» → 1299) — копия разбора на момент миграции 5, не менять. */
+    private static int labelPriceRub(String label, int def) {
+        Matcher m = LABEL_PRICE.matcher(label);
+        if (!m.find()) return def;
+        String num = m.group(1).replaceAll("[\\s.,]", "");
+        try { return Integer.parseInt(num); } catch (NumberFormatException e) { return def; }
+    }
+
+    private static void baseline(Statement st) throws SQLException {
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS keywords (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "keyword TEXT UNIQUE NOT NULL," +
+                "introText TEXT," +
+                "rewardText TEXT," +
+                "materials TEXT" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS settings (" +
+                "key TEXT PRIMARY KEY," +
+                "value TEXT" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS subscriptions (" +
+                "userId INTEGER PRIMARY KEY," +
+                "expiresAtMillis INTEGER NOT NULL" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS orders (" +
+                "orderId TEXT PRIMARY KEY," +
+                "userId INTEGER NOT NULL," +
+                "plan INTEGER NOT NULL," +
+                "days INTEGER NOT NULL," +
+                "createdAtMillis INTEGER NOT NULL," +
+                "paidAtMillis INTEGER" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS processed_webhooks (" +
+                "provider TEXT NOT NULL," +
+                "event_id TEXT NOT NULL," +
+                "processed_at INTEGER NOT NULL," +
+                "PRIMARY KEY(provider, event_id)" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS drip_campaigns (" +
+                "userId INTEGER PRIMARY KEY," +
+                "nextAtMillis INTEGER NOT NULL," +
+                "step INTEGER NOT NULL" +
+                ");");
+
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS telegram_files (" +
+                "path TEXT NOT NULL," +
+                "kind TEXT NOT NULL," +
+                "size INTEGER NOT NULL," +
+                "mtimeMillis INTEGER NOT NULL," +
+                "fileId TEXT NOT NULL," +
+                "PRIMARY KEY(path, kind)" +
+                ");");
+    }
+}
@@ -0,0 +1,254 @@
+package ru.animabot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Единая очередь исходящих вызовов Bot API с учётом лимитов Telegram:
+ *  - глобально ~30 сообщений/с;
+ *  - в один чат ~1 сообщение/с (с небольшим burst), в группу — 20/мин.
+ * Лимиты — token bucket в форме GCRA (теоретическое время следующей отправки).
+ * Место в лимите чата резервируется при постановке, глобальный лимит проверяется
+ * при выдаче; поток-диспетчер ждёт ровно до готовности ближайшей задачи (DelayQueue).
+ * Ответ 429 не теряет сообщение: задача возвращается в очередь через retry_after,
+ * а лимит чата сдвигается на то же время.
+ */
+public class SendScheduler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SendScheduler.class);
+
+    /** Вызов Bot API (выполняется в пуле отправителей). */
+    public interface ApiCall<T> {
+        T call() throws TelegramApiException;
+    }
+
+    private static final long GLOBAL_INTERVAL_NANOS  = TimeUnit.SECONDS.toNanos(1) / 30;
+    private static final int  GLOBAL_BURST           = 30;
+    private static final long PRIVATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int  PRIVATE_BURST          = 5;   // выдача подарка — несколько сообщений подряд
+    private static final long GROUP_INTERVAL_NANOS   = TimeUnit.SECONDS.toNanos(3); // 20 в минуту
+    private static final int  GROUP_BURST            = 3;
+    private static final int  MAX_429_RETRIES        = 5;
+    private static final int  CHAT_STATE_SWEEP       = 10_000;
+    private static final int  SENDER_THREADS         = 16;
+
+    private final class Task<T> implements Delayed {
+        final String method;
+        final String chatKey;
+        final long uploadBytes;
+        final ApiCall<T> call;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long seq = sequence.incrementAndGet();
+        volatile long readyAtNanos;
+        int retries;
+
+        Task(String method, String chatKey, long uploadBytes, ApiCall<T> call, long readyAtNanos) {
+            this.method = method; this.chatKey = chatKey; this.uploadBytes = uploadBytes;
+            this.call = call; this.readyAtNanos = readyAtNanos;
+        }
+
+        @Override public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override public int compareTo(Delayed o) {
+            Task<?> other = (Task<?>) o;
+            int c = Long.compare(readyAtNanos, other.readyAtNanos);
+            return c != 0 ? c : Long.compare(seq, other.seq); // при равном времени — в порядке постановки
+        }
+
+        void run() {
+            long t0 = System.nanoTime();
+            JfrEvents.BotApiCall ev = new JfrEvents.BotApiCall();
+            ev.begin();
+            int attempt = retries;
+            int status = 200;
+            try {
+                future.complete(call.call());
+            } catch (TelegramApiRequestException e) {
+                status = e.getErrorCode() != null ? e.getErrorCode() : -1;
+                Integer retryAfter = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+                if (status == 429) Metrics.BOT_API_429.labels(method).increment();
+                if (status == 429 && retries < MAX_429_RETRIES) {
+                    retries++;
+                    long delay = TimeUnit.SECONDS.toNanos(retryAfter != null ? Math.max(1, retryAfter) : 1);
+                    LOG.warn("429 for chat {}: retry #{} in {} s", chatKey, retries, TimeUnit.NANOSECONDS.toSeconds(delay));
+                    requeueAfter(this, delay);
+                } else {
+                    Metrics.BOT_API_FAILURES.labels(method).increment();
+                    future.completeExceptionally(e);
+                }
+            } catch (Throwable e) {
+                status = -1;
+                Metrics.BOT_API_FAILURES.labels(method).increment();
+                future.completeExceptionally(e);
+            } finally {
+                Metrics.BOT_API_CALLS.labels(method).observeSince(t0);
+                ev.end();
+                if (ev.shouldCommit()) {
+                    ev.method = method;
+                    ev.chat = chatKey;
+                    ev.uploadedBytes = uploadBytes;
+                    ev.status = status;
+                    ev.retry = attempt;
+                    ev.commit();
+                }
+            }
+        }
+    }
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final DelayQueue<Task<?>> queue = new DelayQueue<>();
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    // GCRA-состояние: «теоретическое время прибытия» следующего сообщения
+    private final Object limitsLock = new Object();
+    private long globalTat = System.nanoTime();
+    private final Map<String, Long> chatTat = new HashMap<>();
+
+    public SendScheduler() {
+        AtomicInteger n = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(SENDER_THREADS, r -> {
+            Thread t = new Thread(r, "tg-sender-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::dispatch, "tg-send-scheduler");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Ставит вызов в очередь. chatKey — чат-получатель для сообщений,
+     * null — вызов без сообщения в чат (answerCallbackQuery, getChatMember и т.п.), только глобальный лимит.
+     * method — имя метода Bot API для метрик, uploadBytes — размер загружаемого файла (для JFR), 0 — без файла.
+     */
+    public <T> CompletableFuture<T> submit(String method, String chatKey, long uploadBytes, ApiCall<T> call) {
+        Task<T> task = new Task<>(method, chatKey, uploadBytes, call, reserveChat(chatKey, System.nanoTime()));
+        if (closed) {
+            task.future.completeExceptionally(new TelegramApiException("send scheduler is closed"));
+            return task.future;
+        }
+        queue.put(task);
+        return task.future;
+    }
+
+    public <T> CompletableFuture<T> submit(String method, String chatKey, ApiCall<T> call) {
+        return submit(method, chatKey, 0, call);
+    }
+
+    public <T> T execute(String method, String chatKey, ApiCall<T> call) throws TelegramApiException {
+        return execute(method, chatKey, 0, call);
+    }
+
+    /** Синхронный вариант: ждём результата вызова (вместе с очередью и повторами после 429). */
+    public <T> T execute(String method, String chatKey, long uploadBytes, ApiCall<T> call) throws TelegramApiException {
+        try {
+            return submit(method, chatKey, uploadBytes, call).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TelegramApiException) throw (TelegramApiException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new TelegramApiException(cause);
+        }
+    }
+
+    public int queueSize() {
+        return queue.size();
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            Task<?> task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            long wait = tryAcquireGlobal(now);
+            if (wait > 0) {
+                // глобальный лимит исчерпан — вернём задачу ровно к моменту, когда он освободится
+                task.readyAtNanos = now + wait;
+                queue.put(task);
+                continue;
+            }
+            senders.execute(task::run);
+        }
+    }
+
+    private void requeueAfter(Task<?> task, long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        if (task.chatKey != null) {
+            synchronized (limitsLock) {
+                // остальные сообщения в этот чат тоже ждут retry_after (без burst-допуска)
+                chatTat.merge(task.chatKey, at + tolerance(task.chatKey), Math::max);
+            }
+        }
+        task.readyAtNanos = at;
+        queue.put(task);
+    }
+
+    /** Резервирует место в лимите чата; возвращает момент, когда можно отправлять. */
+    private long reserveChat(String chatKey, long now) {
+        if (chatKey == null) return now;
+        long interval = interval(chatKey);
+        long tolerance = tolerance(chatKey);
+        synchronized (limitsLock) {
+            if (chatTat.size() > CHAT_STATE_SWEEP) chatTat.values().removeIf(t -> t < now);
+            long tat = Math.max(chatTat.getOrDefault(chatKey, now), now);
+            long start = Math.max(now, tat - tolerance);
+            chatTat.put(chatKey, tat + interval);
+            return start;
+        }
+    }
+
+    /** Группы и каналы в Telegram имеют отрицательный chat_id. */
+    private static boolean isGroup(String chatKey) {
+        return chatKey.startsWith("-");
+    }
+
+    private static long interval(String chatKey) {
+        return isGroup(chatKey) ? GROUP_INTERVAL_NANOS : PRIVATE_INTERVAL_NANOS;
+    }
+
+    private static long tolerance(String chatKey) {
+        return interval(chatKey) * ((isGroup(chatKey) ? GROUP_BURST : PRIVATE_BURST) - 1);
+    }
+
+    /** 0 — глобальный токен взят; иначе сколько наносекунд ждать. */
+    private long tryAcquireGlobal(long now) {
+        long tolerance = GLOBAL_INTERVAL_NANOS * (GLOBAL_BURST - 1);
+        synchronized (limitsLock) {
+            long tat = Math.max(globalTat, now);
+            long allowedAt = tat - tolerance;
+            if (allowedAt > now) return allowedAt - now;
+            globalTat = tat + GLOBAL_INTERVAL_NANOS;
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdown();
+        List<Task<?>> pending = new ArrayList<>(queue); // poll() отдал бы только созревшие задачи
+        queue.clear();
+        for (Task<?> t : pending) {
+            t.future.completeExceptionally(new TelegramApiException("send scheduler is closed"));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.animabot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Неизменяемый срез таблицы settings.
+ * Рендер берёт один снимок и читает из него все ключи — без обращения к БД
+ * и без риска увидеть наполовину обновлённый тариф.
+ */
+public final class SettingsSnapshot {
+
+    private final Map<String, String> values;
+
+    SettingsSnapshot(Map<String, String> values) {
+        this.values = Collections.unmodifiableMap(new HashMap<>(values));
+    }
+
+    static SettingsSnapshot empty() {
+        return new SettingsSnapshot(Collections.emptyMap());
+    }
+
+    /** Новый снимок с применёнными изменениями. */
+    SettingsSnapshot with(Map<String, String> changes) {
+        Map<String, String> next = new HashMap<>(values);
+        next.putAll(changes);
+        return new SettingsSnapshot(next);
+    }
+
+    public String get(String key, String def) {
+        return values.containsKey(key) ? values.get(key) : def;
+    }
+}
@@ -2,6 +2,7 @@ package ru.animabot;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
@@ -17,10 +18,11 @@ import org.telegram.telegrambots.meta.api.objects.chatmember.ChatMember;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import java.io.File;
+import java.io.Serializable;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -42,21 +44,14 @@ public class SoulWayBot extends TelegramLongPollingBot {
     private static final String S_PROCVETA_TEXT    = "procveta_text";
     private static final String S_PROCVETA_URL     = "procveta_url";
 
-    // Тарифы: лейбл/дни/база-URL (поддомен или поддомен+реф)
-    private static final String S_TAR1_LABEL = "tariff1_label";
-    private static final String S_TAR1_DAYS  = "tariff1_days";
-    private static final String S_TAR1_URL   = "tariff1_url";
-
-    private static final String S_TAR2_LABEL = "tariff2_label";
-    private static final String S_TAR2_DAYS  = "tariff2_days";
-    private static final String S_TAR2_URL   = "tariff2_url";
-
-    private static final String S_TAR3_LABEL = "tariff3_label";
-    private static final String S_TAR3_DAYS  = "tariff3_days";
-    private static final String S_TAR3_URL   = "tariff3_url";
-
     private static final String S_GROUP_ID         = "group_id";
     private static final String S_GROUP_INVITE_URL = "group_invite_url";
+    /** Курсор обработки истёкших подписок: всё, что истекло до него, уже удалено из группы. */
+    private static final String C_EXPIRY = "expiry";
+    /** Страховочный интервал проверки, даже если ближайших сроков нет. */
+    private static final long EXPIRY_MAX_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    /** Пауза перед повтором, если удалить кого-то не удалось (сеть, 429, 5xx). */
+    private static final long EXPIRY_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
     private static final String S_GIFT_KEYWORD     = "gift_keyword";
 
     // ===== ENV =====
@@ -65,13 +60,34 @@ public class SoulWayBot extends TelegramLongPollingBot {
     private final long   ADMIN_ID       = Long.parseLong(System.getenv().getOrDefault("TG_ADMIN_ID", "726773708"));
     private final String CHANNEL_ID     = System.getenv().getOrDefault("TG_CHANNEL_ID", "sibirskaiapro"); // без @
     private final String BOT_LINK_SECRET= System.getenv().getOrDefault("BOT_LINK_SECRET", "");
+    private final int    TARIFF_LINK_CACHE_SIZE = Integer.parseInt(System.getenv().getOrDefault("TARIFF_LINK_CACHE_SIZE", "10000"));
 
     /** Корень локальных материалов внутри контейнера. */
     private static final String FILES_ROOT = "/work/files/";
 
     private final SQLiteManager db;
+    private final FileIdCache fileIds;
+    private final MembershipCache channelMembers = new MembershipCache();
+    /** Все вызовы Bot API идут через очередь с лимитами Telegram. */
+    private final SendScheduler sender = new SendScheduler();
+    /** Апдейты разных чатов обрабатываются параллельно, одного чата — по порядку. */
+    private final UpdateDispatcher dispatcher = new UpdateDispatcher(this::handleUpdate);
+    /** Ссылки оплаты для текущей версии db.tariffs(); пересобирается при её смене. */
+    private volatile TariffCatalog tariffCatalog;
+    private final Object tariffLock = new Object();
     private final SimpleDateFormat df = new SimpleDateFormat("dd.MM.yyyy HH:mm");
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final DripScheduler drips;
+    /** Отметки обработанных вебхуков: LRU в памяти + таблица с ограниченным сроком хранения. */
+    private final IdempotencyStore idempotency;
+    /** Выдача оплаченного доступа по заданиям из вебхука (outbox). */
+    private final FulfillmentWorker fulfillment;
+    /** Обработка истёкших подписок — по одной за раз; таймер ближайшей проверки — под expiryLock. */
+    private final Object expiryRunLock = new Object();
+    private final Object expiryLock = new Object();
+    private volatile long expiryCursor = -1; // -1 — ещё не прочитан из job_cursors
+    private ScheduledFuture<?> expiryTimer;
+    private long expiryTimerAtMillis = Long.MAX_VALUE;
 
     // ===== Callback-ключи =====
     private static final String CB_CHECKSUB_PREFIX = "CHECKSUB:";
@@ -126,40 +142,63 @@ public class SoulWayBot extends TelegramLongPollingBot {
                     "Присоединяйся!\n\n*По дополнительным вопросам: @soulwaycare.";
 
     public SoulWayBot() {
-        db = new SQLiteManager("soulway.db");
+        this(defaultOptions(), System.getenv().getOrDefault("DB_FILE", "soulway.db"));
+    }
+
+    /** Для нагрузочного стенда: свой адрес Bot API и отдельная база. */
+    SoulWayBot(DefaultBotOptions options, String dbFile) {
+        super(options);
+        db = new SQLiteManager(dbFile);
+        fileIds = new FileIdCache(db);
         df.setTimeZone(TimeZone.getTimeZone("Europe/Moscow"));
         seedDefaults();
 
-        // Периодическая чистка и рассылка
-        scheduler.scheduleAtFixedRate(() -> {
-            try { cleanupExpired(); } catch (Exception e) { LOG.warn("cleanup error", e); }
-        }, 30, 30, TimeUnit.MINUTES);
+        // Истёкшие подписки и drip-рассылка — по точным срокам, без периодического обхода таблиц
+        rescheduleExpiryCheck(0);
+        drips = new DripScheduler(db, this::processDueDrips);
+        idempotency = new IdempotencyStore(db);
+        fulfillment = new FulfillmentWorker(db, idempotency, this::deliverPaid);
+        registerGauges();
+    }
 
-        scheduler.scheduleAtFixedRate(() -> {
-            try { processDripCampaigns(); } catch (Exception e) { LOG.warn("drip error", e); }
-        }, 1, 10, TimeUnit.MINUTES);
+    private void registerGauges() {
+        Metrics.gauge("soulway_update_queue_depth", "Updates waiting in per-chat queues", dispatcher::queueDepth);
+        Metrics.gauge("soulway_update_active_chats", "Chats with updates in progress", dispatcher::activeChats);
+        Metrics.gauge("soulway_send_queue_size", "Bot API calls waiting for rate limits", sender::queueSize);
+        Metrics.gauge("soulway_drips_scheduled", "Drip campaigns in the in-memory schedule", drips::size);
+        Metrics.gauge("soulway_drips_overdue", "Drip messages already due but not sent", drips::overdue);
+        Metrics.gauge("soulway_fulfillment_pending", "Paid orders waiting for delivery", fulfillment::pending);
+        Metrics.gauge("soulway_expired_members_present", "Group members whose expired subscription is not processed yet",
+                () -> db.countExpiredMembers(expiryCursor(), System.currentTimeMillis()));
     }
 
     public SQLiteManager getDb() { return db; }
 
+    public FulfillmentWorker getFulfillment() { return fulfillment; }
+
+    /**
+     * chat_member по умолчанию не присылается — запрашиваем явно (нужен для кэша подписки).
+     * TG_API_BASE_URL — свой Bot API сервер (локальный telegram-bot-api или заглушка стенда), вида http://host:port/bot
+     */
+    static DefaultBotOptions defaultOptions() {
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setAllowedUpdates(List.of("message", "callback_query", "chat_member"));
+        String baseUrl = System.getenv().getOrDefault("TG_API_BASE_URL", "");
+        if (!baseUrl.isBlank()) options.setBaseUrl(baseUrl.trim());
+        return options;
+    }
+
     // ===== HMAC и токен заказа =====
 
     public static String hmacHex(String data, String secret) {
-        try {
-            if (secret == null || secret.isBlank()) return "0";
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(secret.getBytes(java.nio.charset.StandardCharsets.UTF_8), "HmacSHA256"));
-            byte[] out = mac.doFinal(data.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder(out.length * 2);
-            for (byte b : out) sb.append(String.format("%02x", b));
-            return sb.toString();
-        } catch (Exception e) { throw new RuntimeException(e); }
+        if (secret == null || secret.isBlank()) return "0";
+        return HmacSigner.forKey(secret).signHex(data);
     }
 
     /** swb:<uid>:<days>:<hmac(uid:days)> */
-    private String buildOrderIdToken(long uid, int days) {
+    static String buildOrderIdToken(long uid, int days, String secret) {
         String payload = uid + ":" + days;
-        return "swb:" + payload + ":" + hmacHex(payload, BOT_LINK_SECRET);
+        return "swb:" + payload + ":" + hmacHex(payload, secret);
     }
 
     /** Разбор нашего токена. null если подпись не сходится. */
@@ -174,7 +213,11 @@ public class SoulWayBot extends TelegramLongPollingBot {
         try {
             long uid = Long.parseLong(p[1]);
             int days = Integer.parseInt(p[2]);
-            if (!Objects.equals(hmacHex(uid + ":" + days, secret), p[3])) return null;
+            if (secret == null || secret.isBlank()) {
+                if (!"0".equals(p[3])) return null;
+            } else if (!HmacSigner.verifyHex(HmacSigner.forKey(secret).sign(uid + ":" + days), p[3])) {
+                return null;
+            }
             return new long[]{uid, days};
         } catch (Exception ignore) { return null; }
     }
@@ -216,18 +259,6 @@ public class SoulWayBot extends TelegramLongPollingBot {
         putIfEmpty(S_PROCVETA_TEXT,"🌸 КЛУБ «ПРОЦВЕТАЙ»\nКлуб с живыми встречами в Санкт-Петербурге ❤️");
         putIfEmpty(S_PROCVETA_URL, "https://t.me/procvetaiclub");
 
-        // Рекомендую поддоменную форму или поддомен+реф (оба варианта поддерживаются)
-        putIfEmpty(S_TAR1_LABEL, "1 МЕС • 1299 ₽");
-        putIfEmpty(S_TAR1_DAYS,  "30");
-        putIfEmpty(S_TAR1_URL,   "https://soulway.payform.ru/4e9isVQ/");
-
-        putIfEmpty(S_TAR2_LABEL, "3 МЕС • 3599 ₽");
-        putIfEmpty(S_TAR2_DAYS,  "90");
-        putIfEmpty(S_TAR2_URL,   "https://soulway.payform.ru/en9it1j/");
-
-        putIfEmpty(S_TAR3_LABEL, "12 МЕС • 12900 ₽");
-        putIfEmpty(S_TAR3_DAYS,  "365");
-        putIfEmpty(S_TAR3_URL,   "https://soulway.payform.ru/kr9it4z/");
     }
 
     private void putIfEmpty(String key, String value) {
@@ -242,15 +273,58 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
     @Override
     public void onUpdateReceived(Update update) {
+        dispatcher.dispatch(update);
+    }
+
+    public UpdateDispatcher getDispatcher() { return dispatcher; }
+
+    private void handleUpdate(Update update) {
+        if (update == null) return;
+        long t0 = System.nanoTime();
+        JfrEvents.Update ev = new JfrEvents.Update();
+        ev.begin();
+        String type = "other";
         try {
-            if (update == null) return;
-            if (update.hasMessage()) handleMessage(update.getMessage());
-            else if (update.hasCallbackQuery()) handleCallback(update.getCallbackQuery());
+            if (update.hasMessage()) { type = "message"; handleMessage(update.getMessage()); }
+            else if (update.hasCallbackQuery()) { type = "callback_query"; handleCallback(update.getCallbackQuery()); }
+            else if (update.hasChatMember()) { type = "chat_member"; handleChatMember(update.getChatMember()); }
         } catch (Exception e) {
             LOG.error("Error processing update", e);
+        } finally {
+            Metrics.UPDATES.labels(type).observeSince(t0);
+            ev.end();
+            if (ev.shouldCommit()) {
+                ev.type = type;
+                ev.route = routeOf(update);
+                ev.chatId = update.hasMessage() ? update.getMessage().getChatId()
+                        : update.hasCallbackQuery() ? update.getCallbackQuery().getFrom().getId() : 0;
+                ev.commit();
+            }
         }
     }
 
+    /** Маршрут для JFR: команда без @имени бота или callback data без ключа кодового слова. */
+    private static String routeOf(Update update) {
+        if (update.hasMessage() && update.getMessage().hasText()) {
+            String text = update.getMessage().getText().trim();
+            if (!text.startsWith("/")) return "text";
+            int end = text.length();
+            for (int i = 1; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == ' ' || c == '@') { end = i; break; }
+            }
+            return text.substring(0, end).toLowerCase(Locale.ROOT);
+        }
+        if (update.hasCallbackQuery()) {
+            String data = update.getCallbackQuery().getData();
+            if (data == null) return "";
+            if (data.startsWith(CB_CHECKSUB_PREFIX)) return CB_CHECKSUB_PREFIX;
+            if (data.startsWith(CB_OPENKW_PREFIX)) return CB_OPENKW_PREFIX;
+            return data;
+        }
+        return "";
+    }
+
     private void handleMessage(Message msg) {
         if (msg == null || msg.getFrom() == null) return;
         long chatId = msg.getChatId();
@@ -276,10 +350,11 @@ public class SoulWayBot extends TelegramLongPollingBot {
         try {
             switch (cmd) {
                 case "/start": {
-                    String raw = db.getSetting(S_WELCOME_TEXT, "{name}, Добро пожаловать!");
+                    SettingsSnapshot st = db.settings();
+                    String raw = st.get(S_WELCOME_TEXT, "{name}, Добро пожаловать!");
                     String name = msg.getFrom().getFirstName() != null ? msg.getFrom().getFirstName() : "друг";
                     SendMessage sm = new SendMessage(String.valueOf(chatId), raw.replace("{name}", name));
-                    sm.setReplyMarkup(buildStartGiftKeyboard());
+                    sm.setReplyMarkup(buildStartGiftKeyboard(st));
                     safeExec(sm);
                     break;
                 }
@@ -342,35 +417,27 @@ public class SoulWayBot extends TelegramLongPollingBot {
                 case "/setprocveta":      if (!isAdmin(userId)) { deny(chatId); break; } db.setSetting(S_PROCVETA_URL, args);  sendText(chatId, "✅ Ссылка «Процветай» обновлена."); break;
                 case "/setprocveta_text": if (!isAdmin(userId)) { deny(chatId); break; } db.setSetting(S_PROCVETA_TEXT, args); sendText(chatId, "✅ Текст «Процветай» обновлён."); break;
 
-                // Тарифы: LABEL|DAYS|BASE_URL
-                case "/settariff1": {
-                    if (!isAdmin(userId)) { deny(chatId); break; }
-                    String[] a = args.split("\\|", 3);
-                    if (a.length < 3) { sendText(chatId, "Формат: /settariff1 LABEL|DAYS|BASE_URL"); break; }
-                    db.setSetting(S_TAR1_LABEL, a[0].trim());
-                    db.setSetting(S_TAR1_DAYS,  a[1].trim());
-                    db.setSetting(S_TAR1_URL,   a[2].trim());
-                    sendText(chatId, "✅ Тариф #1 сохранён.");
-                    break;
-                }
-                case "/settariff2": {
+                // Тарифы: /settariffN LABEL|DAYS|BASE_URL[|PRICE_RUB[|PRODUCT_NAME]] — см. setTariff
+                case "/listtariffs": {
                     if (!isAdmin(userId)) { deny(chatId); break; }
-                    String[] a = args.split("\\|", 3);
-                    if (a.length < 3) { sendText(chatId, "Формат: /settariff2 LABEL|DAYS|BASE_URL"); break; }
-                    db.setSetting(S_TAR2_LABEL, a[0].trim());
-                    db.setSetting(S_TAR2_DAYS,  a[1].trim());
-                    db.setSetting(S_TAR2_URL,   a[2].trim());
-                    sendText(chatId, "✅ Тариф #2 сохранён.");
+                    List<Tariff> list = db.tariffs().all();
+                    if (list.isEmpty()) { sendText(chatId, "Тарифов нет."); break; }
+                    StringBuilder sb = new StringBuilder("Тарифы:\n");
+                    for (Tariff t : list) {
+                        sb.append("#").append(t.getId()).append(" ").append(t.getName())
+                                .append(" — ").append(t.getPeriodDays()).append(" дн., ").append(t.getPriceRub()).append(" ₽\n")
+                                .append("   ").append(t.getProductName()).append("\n")
+                                .append("   ").append(t.getPayUrl()).append("\n");
+                    }
+                    sendText(chatId, sb.toString());
                     break;
                 }
-                case "/settariff3": {
+                case "/deltariff": {
                     if (!isAdmin(userId)) { deny(chatId); break; }
-                    String[] a = args.split("\\|", 3);
-                    if (a.length < 3) { sendText(chatId, "Формат: /settariff3 LABEL|DAYS|BASE_URL"); break; }
-                    db.setSetting(S_TAR3_LABEL, a[0].trim());
-                    db.setSetting(S_TAR3_DAYS,  a[1].trim());
-                    db.setSetting(S_TAR3_URL,   a[2].trim());
-                    sendText(chatId, "✅ Тариф #3 сохранён.");
+                    int id = safeParseInt(args, -1);
+                    if (db.tariffs().get(id) == null) { sendText(chatId, "Формат: /deltariff N (номер из /listtariffs)"); break; }
+                    db.deleteTariff(id);
+                    sendText(chatId, "✅ Тариф #" + id + " удалён.");
                     break;
                 }
 
@@ -381,29 +448,74 @@ public class SoulWayBot extends TelegramLongPollingBot {
                 case "/grantsub": {
                     if (!isAdmin(userId)) { deny(chatId); break; }
                     String[] a = args.split("\\s+");
-                    if (a.length < 2) { sendText(chatId, "Формат: /grantsub <userId> <days>"); break; }
-                    long uid = Long.parseLong(a[0]);
+                    if (a.length < 2) { sendText(chatId, "Формат: /grantsub <userId>[,<userId>...] <days>"); break; }
                     int days = Integer.parseInt(a[1]);
-                    db.grantSubscription(uid, days);
-                    sendText(chatId, "✅ Подписка выдана: " + uid + " на " + days + " дн.");
-                    String invite = ensureInviteLink();
-                    if (invite != null) sendText(uid, "🔗 Ссылка для входа в чат: " + invite);
+                    // несколько ID через запятую — одной транзакцией
+                    List<SQLiteManager.Grant> grants = new ArrayList<>();
+                    for (String id : a[0].split(",")) {
+                        if (!id.isBlank()) grants.add(SQLiteManager.Grant.days(Long.parseLong(id.trim()), days));
+                    }
+                    // ждём коммита выдачи: приглашение не должно обгонять подписку;
+                    // таймер переводим уже здесь, а не в колбэке future — тот выполнился бы на потоке-писателе SQLite
+                    try {
+                        db.grantSubscriptions(grants).join();
+                    } catch (CompletionException e) {
+                        LOG.error("grantsub failed", e.getCause());
+                        sendText(chatId, "⚠️ Подписка не выдана: ошибка записи в базу.");
+                        break;
+                    }
+                    rescheduleNextExpiry();
+                    String who = grants.size() == 1 ? String.valueOf(grants.get(0).userId) : grants.size() + " польз.";
+                    sendText(chatId, "✅ Подписка выдана: " + who + " на " + days + " дн.");
+                    String invite;
+                    try {
+                        invite = ensureInviteLink();
+                    } catch (TelegramApiException e) {
+                        LOG.warn("Не удалось создать инвайт-ссылку: {}", e.getMessage());
+                        sendText(chatId, "⚠️ Не удалось создать инвайт-ссылку, отправьте её вручную.");
+                        break;
+                    }
+                    if (invite != null) {
+                        for (SQLiteManager.Grant g : grants) sendText(g.userId, "🔗 Ссылка для входа в чат: " + invite);
+                    }
                     break;
                 }
                 case "/cleanup": {
                     if (!isAdmin(userId)) { deny(chatId); break; }
-                    int n = cleanupExpired();
+                    int n = processExpiredMembers();
                     sendText(chatId, "🧹 Удалено из группы: " + n);
                     break;
                 }
 
-                default: sendText(chatId, "Ой, кажется я не знаю такой команды, напишите /help если вам нужна помощь.");
+                default:
+                    // /settariffN — номер тарифа в самой команде
+                    if (cmd.startsWith("/settariff")) { setTariff(chatId, userId, cmd, args); break; }
+                    sendText(chatId, "Ой, кажется я не знаю такой команды, напишите /help если вам нужна помощь.");
             }
         } catch (Exception e) {
             LOG.error("handleCommand error", e);
         }
     }
 
+    /** /settariffN LABEL|DAYS|BASE_URL[|PRICE_RUB[|PRODUCT_NAME]]: цена по умолчанию — из лейбла, название продукта — прежнее. */
+    private void setTariff(long chatId, long userId, String cmd, String args) {
+        if (!isAdmin(userId)) { deny(chatId); return; }
+        int id = safeParseInt(cmd.substring("/settariff".length()), -1);
+        String[] a = args.split("\\|", 5);
+        if (id <= 0 || a.length < 3) {
+            sendText(chatId, "Формат: /settariffN LABEL|DAYS|BASE_URL[|PRICE_RUB[|PRODUCT_NAME]]");
+            return;
+        }
+        Tariff prev = db.tariffs().get(id);
+        String label = a[0].trim();
+        int days = safeParseInt(a[1], -1);
+        long kopecks = (a.length >= 4 && !a[3].isBlank()) ? TariffIndex.parseKopecks(a[3]) : extractPriceRub(label, -1) * 100L;
+        String product = (a.length == 5 && !a[4].isBlank()) ? a[4].trim() : (prev != null ? prev.getProductName() : label);
+        if (days <= 0 || kopecks <= 0) { sendText(chatId, "Срок и цена должны быть положительными числами."); return; }
+        db.upsertTariff(new Tariff(id, label, product, kopecks, days, a[2].trim()));
+        sendText(chatId, "✅ Тариф #" + id + " сохранён.");
+    }
+
     private boolean isAdmin(long uid) { return uid == ADMIN_ID; }
     private void deny(long chatId) { sendText(chatId, "Доступ только администратору."); }
 
@@ -416,7 +528,7 @@ public class SoulWayBot extends TelegramLongPollingBot {
         try {
             if (data != null && data.startsWith(CB_CHECKSUB_PREFIX)) {
                 String key = data.substring(CB_CHECKSUB_PREFIX.length());
-                Keyword kw = db.findKeywordByKey(key);
+                KeywordIndex.Entry kw = db.keywords().get(key);
                 if (kw == null) { answerCallback(cb.getId(), "Кодовое слово не найдено."); return; }
 
                 // Проверяем подписку на канал
@@ -450,7 +562,7 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
             if (data != null && data.startsWith(CB_OPENKW_PREFIX)) {
                 String key = data.substring(CB_OPENKW_PREFIX.length());
-                Keyword kw = db.findKeywordByKey(key);
+                KeywordIndex.Entry kw = db.keywords().get(key);
                 if (kw == null) { answerCallback(cb.getId(), "Кодовое слово не найдено."); return; }
                 SendMessage sm = new SendMessage(String.valueOf(chatId), nonEmpty(kw.getIntroText(), "🎁 Подарок:"));
                 sm.setReplyMarkup(buildIntroKeyboard(kw));
@@ -459,9 +571,10 @@ public class SoulWayBot extends TelegramLongPollingBot {
                 return;
             }
 
+            SettingsSnapshot st = db.settings();
             switch (data) {
                 case CB_MENU_CLUB: {
-                    String club = db.getSetting(S_CLUB_TEXT, "Информация о клубе скоро будет обновлена.");
+                    String club = st.get(S_CLUB_TEXT, "Информация о клубе скоро будет обновлена.");
                     sendMenuSection(chatId, club, buildClubMenu());
                     answerCallback(cb.getId(), "");
                     break;
@@ -472,21 +585,21 @@ public class SoulWayBot extends TelegramLongPollingBot {
                     break;
                 }
                 case CB_MENU_REV: {
-                    String header = db.getSetting(S_REVIEWS_TEXT, "📝 ОТЗЫВЫ\nЗдесь вы можете посмотреть отзывы:");
-                    String url = db.getSetting(S_REVIEWS_URL, "");
+                    String header = st.get(S_REVIEWS_TEXT, "📝 ОТЗЫВЫ\nЗдесь вы можете посмотреть отзывы:");
+                    String url = st.get(S_REVIEWS_URL, "");
                     sendLinkSection(chatId, header, url, true);
                     answerCallback(cb.getId(), "");
                     break;
                 }
                 case CB_MENU_ABOUT: {
-                    String about = db.getSetting(S_ABOUT_TEXT, "Информация «Обо мне» будет обновлена.");
+                    String about = st.get(S_ABOUT_TEXT, "Информация «Обо мне» будет обновлена.");
                     sendMenuSection(chatId, about, true);
                     answerCallback(cb.getId(), "");
                     break;
                 }
                 case CB_MENU_SESS: {
-                    String header = db.getSetting(S_SESSIONS_TEXT, "🧘‍♀️ МОИ СЕАНСЫ\nЗдесь Вы можете ознакомиться с моими сеансами:");
-                    String url = db.getSetting(S_SESSIONS_URL, "");
+                    String header = st.get(S_SESSIONS_TEXT, "🧘‍♀️ МОИ СЕАНСЫ\nЗдесь Вы можете ознакомиться с моими сеансами:");
+                    String url = st.get(S_SESSIONS_URL, "");
                     sendLinkSection(chatId, header, url, true);
                     answerCallback(cb.getId(), "");
                     break;
@@ -497,8 +610,8 @@ public class SoulWayBot extends TelegramLongPollingBot {
                     break;
                 }
                 case CB_MENU_PROCV: {
-                    String header = db.getSetting(S_PROCVETA_TEXT, "🌸 КЛУБ «ПРОЦВЕТАЙ»\nОписание будет обновлено.");
-                    String url = db.getSetting(S_PROCVETA_URL, "");
+                    String header = st.get(S_PROCVETA_TEXT, "🌸 КЛУБ «ПРОЦВЕТАЙ»\nОписание будет обновлено.");
+                    String url = st.get(S_PROCVETA_URL, "");
                     sendLinkSection(chatId, header, url, true);
                     answerCallback(cb.getId(), "");
                     break;
@@ -517,10 +630,41 @@ public class SoulWayBot extends TelegramLongPollingBot {
         }
     }
 
+    /** Изменение участника в канале или закрытой группе (приходит, если бот — админ). */
+    private void handleChatMember(ChatMemberUpdated upd) {
+        if (upd == null || upd.getChat() == null || upd.getNewChatMember() == null) return;
+        ChatMember member = upd.getNewChatMember();
+        if (member.getUser() == null) return;
+        long uid = member.getUser().getId();
+        boolean present = MembershipCache.isMemberStatus(member.getStatus());
+        if (isOurChannel(upd.getChat())) {
+            channelMembers.put(uid, present);
+            return;
+        }
+        String groupIdStr = db.getSetting(S_GROUP_ID, "");
+        if (groupIdStr.isBlank() || !groupIdStr.equals(String.valueOf(upd.getChat().getId()))) return;
+        db.setGroupMember(uid, present);
+
+        // Вернулся по общей инвайт-ссылке после истечения подписки: курсор его срок уже прошёл,
+        // таймер больше не увидит — удаляем здесь. Без строки в subscriptions (сотрудники, гости) не трогаем.
+        if (present) {
+            Long exp = db.getSubscriptionExpiry(uid);
+            if (exp != null && exp <= expiryCursor()) {
+                LOG.info("user {} rejoined the group after the subscription expired — removing", uid);
+                removeFromGroup(groupIdStr, uid);
+            }
+        }
+    }
+
+    private boolean isOurChannel(Chat chat) {
+        return CHANNEL_ID.equalsIgnoreCase(String.valueOf(chat.getUserName()))
+                || CHANNEL_ID.equals(String.valueOf(chat.getId()));
+    }
+
     // ===== Разметка и секции =====
 
-    private InlineKeyboardMarkup buildStartGiftKeyboard() {
-        String key = db.getSetting(S_GIFT_KEYWORD, "СВОБОДА").trim().toUpperCase(Locale.ROOT);
+    private InlineKeyboardMarkup buildStartGiftKeyboard(SettingsSnapshot st) {
+        String key = st.get(S_GIFT_KEYWORD, "СВОБОДА").trim().toUpperCase(Locale.ROOT);
         InlineKeyboardButton b = new InlineKeyboardButton();
         b.setText("🎁 " + key);
         b.setCallbackData(CB_OPENKW_PREFIX + key);
@@ -529,7 +673,7 @@ public class SoulWayBot extends TelegramLongPollingBot {
         return kb;
     }
 
-    private InlineKeyboardMarkup buildIntroKeyboard(Keyword kw) {
+    private InlineKeyboardMarkup buildIntroKeyboard(KeywordIndex.Entry kw) {
         InlineKeyboardButton subscribe = new InlineKeyboardButton();
         subscribe.setText("📢 Подписаться");
         subscribe.setUrl("https://t.me/" + CHANNEL_ID);
@@ -545,18 +689,21 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
     /** Привет + главное меню (после выдачи бонуса). */
     private void sendWelcomeWithMenu(long chatId, String userName) {
-        String raw = db.getSetting(S_WELCOME_TEXT, "{name}, приветствую тебя!\nДобро пожаловать в Soul Way.");
+        SettingsSnapshot st = db.settings();
+        String raw = st.get(S_WELCOME_TEXT, "{name}, приветствую тебя!\nДобро пожаловать в Soul Way.");
         String text = raw.replace("{name}", userName);
 
-        String videoRef = db.getSetting(S_WELCOME_VIDEO, null);
+        String videoRef = st.get(S_WELCOME_VIDEO, null);
         InlineKeyboardMarkup menu = buildMainMenu();
 
         if (videoRef != null && !videoRef.isBlank()) {
             try {
-                SendVideo sv = new SendVideo(String.valueOf(chatId), toInputFile(videoRef, true));
-                sv.setCaption(text);
-                sv.setReplyMarkup(menu);
-                execute(sv);
+                sendMaterial(chatId, videoRef, FileIdCache.VIDEO, in -> {
+                    SendVideo sv = new SendVideo(String.valueOf(chatId), in);
+                    sv.setCaption(text);
+                    sv.setReplyMarkup(menu);
+                    return execute(sv);
+                });
                 return;
             } catch (Exception e) { LOG.warn("Не удалось отправить видео приветствия: {}", e.getMessage()); }
         }
@@ -637,30 +784,10 @@ public class SoulWayBot extends TelegramLongPollingBot {
         return sb.toString();
     }
 
-    /** Строим ссылку оплаты. Работает и с поддоменом, и с поддоменом+рефом. */
-    private String buildProdamusLink(String baseUrl, long uid, int days, int priceRub, String productName) {
-        String base = (baseUrl == null || baseUrl.isBlank()) ? "https://soulway.payform.ru/" : baseUrl.trim();
-        String orderToken = buildOrderIdToken(uid, days); // swb:<uid>:<days>:<hmac>
-
-        Map<String, String> p = new LinkedHashMap<>();
-        p.put("do", "pay");
-        // На практике Prodamus возвращает наш маркер в order_num — кладём сюда:
-        p.put("order_num", orderToken);
-        p.put("customer_extra", String.valueOf(uid));
-        p.put("products[0][price]", String.valueOf(priceRub));
-        p.put("products[0][quantity]", "1");
-        p.put("products[0][name]", productName);
-        // Дополнительно продублируем суммарную сумму:
-        p.put("sum", String.valueOf(priceRub));
-
-        String link = appendParamsRawKeys(base, p);
-        LOG.info("[buildProdamusLink] uid={} days={} price={} link={}", uid, days, priceRub, link);
-        return link;
-    }
-
     /** ТЕСТ: ссылка на 5 минут (без токена, по названию TEST-5M, обрабатывается в вебхуке). */
     public String buildTest5MinLink(long uid) {
-        String base = db.getSetting(S_TAR1_URL, "https://soulway.payform.ru/4e9isVQ/");
+        List<Tariff> tariffs = db.tariffs().all();
+        String base = tariffs.isEmpty() ? "https://soulway.payform.ru/4e9isVQ/" : tariffs.get(0).getPayUrl();
         Map<String, String> p = new LinkedHashMap<>();
         p.put("do", "pay");
         p.put("customer_extra", String.valueOf(uid));
@@ -672,49 +799,46 @@ public class SoulWayBot extends TelegramLongPollingBot {
     }
 
     // ИСПРАВЛЕНО: корректно брать цену из конца лейбла («1 МЕС • 1299 ₽» → 1299)
-    private static int extractPriceRub(String labelOrPrice, int def) {
+    private static final java.util.regex.Pattern PRICE_TAIL = java.util.regex.Pattern
+            .compile("([0-9][0-9\\s.,]*)\\s*(?:₽|руб|RUB)?\\s*$", java.util.regex.Pattern.CASE_INSENSITIVE);
+    private static final java.util.regex.Pattern PRICE_SEPARATORS = java.util.regex.Pattern.compile("[\\s.,]");
+
+    static int extractPriceRub(String labelOrPrice, int def) {
         if (labelOrPrice == null) return def;
-        java.util.regex.Matcher m = java.util.regex.Pattern
-                .compile("([0-9][0-9\\s.,]*)\\s*(?:₽|руб|RUB)?\\s*$", java.util.regex.Pattern.CASE_INSENSITIVE)
-                .matcher(labelOrPrice);
+        java.util.regex.Matcher m = PRICE_TAIL.matcher(labelOrPrice);
         if (!m.find()) return def;
-        String num = m.group(1).replaceAll("[\\s.,]", "");
+        String num = PRICE_SEPARATORS.matcher(m.group(1)).replaceAll("");
         try { return Integer.parseInt(num); } catch (Exception e) { return def; }
     }
 
-    private void sendTariffs(long chatId, long userId, boolean withBack) {
-        String u1 = db.getSetting(S_TAR1_URL, "https://soulway.payform.ru/4e9isVQ/");
-        String u2 = db.getSetting(S_TAR2_URL, "https://soulway.payform.ru/en9it1j/");
-        String u3 = db.getSetting(S_TAR3_URL, "https://soulway.payform.ru/kr9it4z/");
-
-        String l1 = db.getSetting(S_TAR1_LABEL, "1 МЕС • 1299 ₽");
-        int    d1 = safeParseInt(db.getSetting(S_TAR1_DAYS, "30"), 30);
-        int    p1 = extractPriceRub(l1, 1299);
-
-        String l2 = db.getSetting(S_TAR2_LABEL, "3 МЕС • 3599 ₽");
-        int    d2 = safeParseInt(db.getSetting(S_TAR2_DAYS, "90"), 90);
-        int    p2 = extractPriceRub(l2, 3599);
-
-        String l3 = db.getSetting(S_TAR3_LABEL, "12 МЕС • 12900 ₽");
-        int    d3 = safeParseInt(db.getSetting(S_TAR3_DAYS, "365"), 365);
-        int    p3 = extractPriceRub(l3, 12900);
-
-        String name1 = "Услуги доступа к клубу Путь Души срок 1 месяц";
-        String name2 = "Услуги доступа к клубу Путь Души срок 3 месяца";
-        String name3 = "Услуги доступа к клубу Путь Души срок 12 месяцев";
-
-        String link1 = buildProdamusLink(u1, userId, d1, p1, name1);
-        String link2 = buildProdamusLink(u2, userId, d2, p2, name2);
-        String link3 = buildProdamusLink(u3, userId, d3, p3, name3);
+    /** Каталог ссылок для текущей версии тарифов: после правки строится один раз, дальше — готовый. */
+    private TariffCatalog tariffCatalog() {
+        TariffIndex index = db.tariffs();
+        TariffCatalog c = tariffCatalog;
+        if (c != null && c.version() == index.version()) return c;
+        synchronized (tariffLock) {
+            index = db.tariffs();
+            c = tariffCatalog;
+            if (c == null || c.version() != index.version()) {
+                c = new TariffCatalog(index, BOT_LINK_SECRET, TARIFF_LINK_CACHE_SIZE);
+                tariffCatalog = c;
+                LOG.info("[tariffs] catalog v{} built: {} tariffs", index.version(), index.size());
+            }
+            return c;
+        }
+    }
 
-        InlineKeyboardButton b1 = new InlineKeyboardButton(l1 + " • оплатить"); b1.setUrl(link1);
-        InlineKeyboardButton b2 = new InlineKeyboardButton(l2 + " • оплатить"); b2.setUrl(link2);
-        InlineKeyboardButton b3 = new InlineKeyboardButton(l3 + " • оплатить"); b3.setUrl(link3);
+    private void sendTariffs(long chatId, long userId, boolean withBack) {
+        // один каталог на весь рендер: лейбл, срок и URL тарифа всегда из одной версии
+        TariffCatalog catalog = tariffCatalog();
+        List<String> links = catalog.linksFor(userId);
 
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        rows.add(List.of(b1));
-        rows.add(List.of(b2));
-        rows.add(List.of(b3));
+        for (int i = 0; i < links.size(); i++) {
+            InlineKeyboardButton b = new InlineKeyboardButton(catalog.tariffs().get(i).getName() + " • оплатить");
+            b.setUrl(links.get(i));
+            rows.add(List.of(b));
+        }
         if (withBack) rows.add(List.of(btn("⬅️ Вернуться в начальное меню", CB_MENU_BACK)));
 
         InlineKeyboardMarkup kb = new InlineKeyboardMarkup();
@@ -742,87 +866,165 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
     // ===== Действия при удачной оплате =====
 
-    public void onProdamusPaid(long uid, int days) {
+    /**
+     * Уведомление об оплате из {@link FulfillmentWorker}: подписка уже продлена в той же транзакции, что и флаг задания.
+     * Ошибка отправки или создания инвайт-ссылки (группа настроена) пробрасывается — задание повторится позже.
+     */
+    private void deliverPaid(SQLiteManager.FulfillmentJob job) throws TelegramApiException {
+        long uid = job.userId;
+        rescheduleNextExpiry();
+        // При оплате (и тестовом доступе) — отключаем drip-рассылку
+        db.deleteDrip(uid);
+        String invite;
         try {
-            if (uid <= 0) { LOG.warn("onProdamusPaid: пустой uid"); return; }
-            db.grantSubscription(uid, days);
-            String invite = ensureInviteLink();
-            if (invite != null) {
-                sendText(uid, "Благодарю за оплату! ✨\nВот ссылка для входа в закрытый чат:\n" + invite);
-            } else {
-                sendText(uid, "Благодарю за оплату! ✨ Мы скоро пришлём ссылку для входа в чат.");
-            }
-            // При оплате — отключаем drip-рассылку
-            db.deleteDrip(uid);
-        } catch (Exception e) { LOG.error("onProdamusPaid error", e); }
-    }
-
-    public void onProdamusPaidMinutes(long uid, int minutes) {
-        try {
-            if (uid <= 0) return;
-            db.grantSubscriptionMinutes(uid, minutes);
-            String invite = ensureInviteLink();
-            if (invite != null) {
-                sendText(uid, "Тестовый доступ на " + minutes + " минут выдан. 🔗 Вход в чат:\n" + invite);
-            } else {
-                sendText(uid, "Тестовый доступ на " + minutes + " минут выдан.");
-            }
-            db.deleteDrip(uid); // тест доступ — тоже стопаем drip
-        } catch (Exception e) { LOG.error("onProdamusPaidMinutes error", e); }
+            invite = ensureInviteLink();
+        } catch (TelegramApiException e) {
+            // 400/403 здесь — про группу (бот не админ и т.п.), а не про пользователя: не даём признать задание безнадёжным
+            throw new TelegramApiException("invite link unavailable: " + e.getMessage(), e);
+        }
+        String text;
+        if (job.days > 0) {
+            text = invite != null
+                    ? "Благодарю за оплату! ✨\nВот ссылка для входа в закрытый чат:\n" + invite
+                    : "Благодарю за оплату! ✨ Мы скоро пришлём ссылку для входа в чат."; // группа ещё не настроена
+        } else {
+            text = invite != null
+                    ? "Тестовый доступ на " + job.minutes + " минут выдан. 🔗 Вход в чат:\n" + invite
+                    : "Тестовый доступ на " + job.minutes + " минут выдан.";
+        }
+        api(new SendMessage(String.valueOf(uid), text));
     }
 
     // ===== Работа с группой =====
 
-    private String ensureInviteLink() {
-        String invite = db.getSetting(S_GROUP_INVITE_URL, "");
+    /**
+     * Инвайт-ссылка в группу: сохранённая или созданная через Bot API.
+     * null — группа не настроена; если группа есть, а ссылку создать не удалось — исключение.
+     */
+    private String ensureInviteLink() throws TelegramApiException {
+        SettingsSnapshot st = db.settings();
+        String invite = st.get(S_GROUP_INVITE_URL, "");
         if (!invite.isBlank()) return invite;
-        String groupIdStr = db.getSetting(S_GROUP_ID, "");
+        String groupIdStr = st.get(S_GROUP_ID, "");
         if (groupIdStr.isBlank()) return null;
-        try {
-            CreateChatInviteLink req = new CreateChatInviteLink();
-            req.setChatId(groupIdStr);
-            ChatInviteLink link = execute(req);
-            if (link != null && link.getInviteLink() != null) {
-                db.setSetting(S_GROUP_INVITE_URL, link.getInviteLink());
-                return link.getInviteLink();
+        CreateChatInviteLink req = new CreateChatInviteLink();
+        req.setChatId(groupIdStr);
+        ChatInviteLink link = api(req);
+        if (link == null || link.getInviteLink() == null) {
+            throw new TelegramApiException("createChatInviteLink returned no link for " + groupIdStr);
+        }
+        db.setSetting(S_GROUP_INVITE_URL, link.getInviteLink());
+        return link.getInviteLink();
+    }
+
+    /**
+     * Удаляет из группы участников, чья подписка истекла после курсора; курсор сдвигается до текущего момента
+     * (не дальше первой неудачной попытки — её повторим через EXPIRY_RETRY_MILLIS). Без группы удалять некого —
+     * курсор просто догоняет текущий момент. Затем заводит таймер на ближайший срок.
+     */
+    private int processExpiredMembers() {
+        synchronized (expiryRunLock) {
+            JfrEvents.SchedulerJob ev = JfrEvents.job("expiry");
+            int removed = 0;
+            boolean failed = false;
+            String groupIdStr = db.getSetting(S_GROUP_ID, "");
+            long now = System.currentTimeMillis();
+            long cursor = expiryCursor();
+            long newCursor = now;
+            if (!groupIdStr.isBlank()) {
+                for (SQLiteManager.Expiry e : db.listExpiredMembers(cursor, now)) {
+                    if (removeFromGroup(groupIdStr, e.userId)) removed++;
+                    else newCursor = Math.min(newCursor, e.expiresAtMillis - 1);
+                }
+                failed = newCursor < now;
             }
-        } catch (Exception e) { LOG.warn("Не удалось создать инвайт-ссылку: {}", e.getMessage()); }
-        return null;
+            if (newCursor > cursor) {
+                db.setCursor(C_EXPIRY, newCursor);
+                expiryCursor = cursor = newCursor;
+            }
+            // при неудаче ближайший срок уже в прошлом — не раньше паузы, иначе таймер крутится вхолостую
+            Long next = db.nextMemberExpiry(cursor);
+            long at = next != null ? next : Long.MAX_VALUE;
+            rescheduleExpiryCheck(failed ? Math.max(at, now + EXPIRY_RETRY_MILLIS) : at);
+            ev.items = removed;
+            ev.failed = failed;
+            ev.commit();
+            return removed;
+        }
     }
 
-    private int cleanupExpired() {
-        String groupIdStr = db.getSetting(S_GROUP_ID, "");
-        if (groupIdStr.isBlank()) return 0;
-        int removed = 0;
-        List<Long> expired = db.listExpiredSince(System.currentTimeMillis());
-        for (Long uid : expired) {
-            try {
-                BanChatMember ban = new BanChatMember();
-                ban.setChatId(groupIdStr);
-                ban.setUserId(uid);
-                ban.setUntilDate((int) (System.currentTimeMillis() / 1000) + 60);
-                execute(ban);
-                removed++;
-                Thread.sleep(80);
-            } catch (Exception e) { LOG.warn("Не удалось удалить {}: {}", uid, e.getMessage()); }
+    /** Курсор истёкших подписок; при первом обращении читается из job_cursors. */
+    private long expiryCursor() {
+        long cursor = expiryCursor;
+        if (cursor < 0) expiryCursor = cursor = db.getCursor(C_EXPIRY, 0L);
+        return cursor;
+    }
+
+    /**
+     * После выдачи подписки ближайший срок мог стать раньше запланированного (тестовый доступ на минуты).
+     * Сроки, которые уже прошли, ждут своего таймера (повтор после неудачи или первый запуск) — не торопим его.
+     */
+    private void rescheduleNextExpiry() {
+        Long next = db.nextMemberExpiry(expiryCursor());
+        if (next != null && next > System.currentTimeMillis()) rescheduleExpiryCheck(next);
+    }
+
+    /** Заводит проверку на atMillis (не позже страховочного интервала), если она раньше уже запланированной. */
+    private void rescheduleExpiryCheck(long atMillis) {
+        synchronized (expiryLock) {
+            long now = System.currentTimeMillis();
+            long at = Math.min(atMillis, now + EXPIRY_MAX_WAIT_MILLIS);
+            if (expiryTimer != null && !expiryTimer.isDone() && expiryTimerAtMillis <= at) return;
+            if (expiryTimer != null) expiryTimer.cancel(false);
+            expiryTimerAtMillis = at;
+            expiryTimer = scheduler.schedule(() -> {
+                synchronized (expiryLock) { // сработал — следующий таймер заведёт processExpiredMembers
+                    if (expiryTimerAtMillis == at) { expiryTimer = null; expiryTimerAtMillis = Long.MAX_VALUE; }
+                }
+                try { processExpiredMembers(); }
+                catch (Exception e) { LOG.warn("expiry error", e); rescheduleExpiryCheck(Long.MAX_VALUE); }
+            }, Math.max(0, at - now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Бан на минуту = удаление из группы с возможностью вернуться по новой оплате.
+     * false — повторить позже; 400/403 (у бота нет прав, участник — админ) повтором не исправить:
+     * такого участника считаем обработанным и больше не трогаем.
+     */
+    private boolean removeFromGroup(String groupIdStr, long uid) {
+        try {
+            BanChatMember ban = new BanChatMember();
+            ban.setChatId(groupIdStr);
+            ban.setUserId(uid);
+            ban.setUntilDate((int) (System.currentTimeMillis() / 1000) + 60);
+            api(ban);
+            db.setGroupMember(uid, false);
+            return true;
+        } catch (TelegramApiRequestException e) {
+            Integer code = e.getErrorCode();
+            if (code != null && (code == 400 || code == 403)) {
+                LOG.warn("Не удалось удалить {} ({}), больше не пытаемся: {}", uid, code, e.getMessage());
+                db.setGroupMember(uid, false);
+                return true;
+            }
+            LOG.warn("Не удалось удалить {}: {}", uid, e.getMessage());
+            return false;
+        } catch (Exception e) {
+            LOG.warn("Не удалось удалить {}: {}", uid, e.getMessage());
+            return false;
         }
-        return removed;
     }
 
     // ===== Drip-рассылка =====
 
-    private void processDripCampaigns() {
-        long now = System.currentTimeMillis();
-        List<SQLiteManager.Drip> due = db.listDueDrips(now, 100);
-        for (SQLiteManager.Drip d : due) {
+    private void processDueDrips(List<SQLiteManager.Drip> due) {
+        // один запрос на пачку: кому слать, а у кого уже есть подписка
+        SQLiteManager.DueDrips split = db.splitDueDrips(due, System.currentTimeMillis());
+        List<SQLiteManager.Drip> advanced = new ArrayList<>();
+        List<Long> cancel = new ArrayList<>(split.cancel);
+        for (SQLiteManager.Drip d : split.send) {
             try {
-                // Если подписка уже активна — удаляем кампанию и не шлём
-                Long exp = db.getSubscriptionExpiry(d.userId);
-                if (exp != null && exp > now) {
-                    db.deleteDrip(d.userId);
-                    continue;
-                }
-
                 String text;
                 switch (d.step) {
                     case 0: text = DRIP_DAY1; break; // +1 день
@@ -834,9 +1036,10 @@ public class SoulWayBot extends TelegramLongPollingBot {
                 InlineKeyboardMarkup kb = new InlineKeyboardMarkup();
                 kb.setKeyboard(List.of(List.of(btn("💳 ТАРИФЫ", CB_MENU_TARIFF))));
                 sm.setReplyMarkup(kb);
-                safeExec(sm);
+                api(sm); // ошибка — шаг не переводим, DripScheduler повторит его позже
 
                 // Переводим на следующий шаг/цикл
+                long now = System.currentTimeMillis();
                 long next;
                 int nextStep;
                 if (d.step == 0) { // был +1 → следующий через +2 дня (итого 3)
@@ -849,34 +1052,37 @@ public class SoulWayBot extends TelegramLongPollingBot {
                     next = now + TimeUnit.DAYS.toMillis(1);
                     nextStep = 0;
                 }
-                db.updateDrip(d.userId, next, nextStep);
-                Thread.sleep(80);
+                advanced.add(new SQLiteManager.Drip(d.userId, next, nextStep));
+            } catch (TelegramApiRequestException e) {
+                if (e.getErrorCode() != null && e.getErrorCode() == 403) {
+                    // бот заблокирован — повтор не поможет, кампанию снимаем
+                    cancel.add(d.userId);
+                    LOG.info("drip cancelled for {}: bot blocked", d.userId);
+                } else {
+                    LOG.warn("drip send failed for {}: {}", d.userId, e.getMessage());
+                }
             } catch (Exception e) {
                 LOG.warn("drip send failed for {}: {}", d.userId, e.getMessage());
             }
         }
+        // все переходы и отмены пачки — одной транзакцией
+        db.applyDripChanges(advanced, cancel);
     }
 
     // ===== Награда по ключевому слову =====
 
-    private void sendReward(long chatId, Keyword kw) {
+    private void sendReward(long chatId, KeywordIndex.Entry kw) {
         try {
-            List<String> materials = kw.getMaterials();
             String rewardText = safeTrim(kw.getRewardText());
 
-            if (materials == null || materials.isEmpty()) {
+            if (!kw.hasMaterials()) {
                 if (!rewardText.isEmpty()) sendText(chatId, rewardText);
                 return;
             }
 
-            String image = null;
-            List<String> docs = new ArrayList<>();
-            for (String m : materials) {
-                if (m == null || m.isBlank()) continue;
-                String v = m.trim();
-                if (isImageSpec(v)) { if (image == null) image = stripImgPrefix(v); else docs.add(v); }
-                else docs.add(v);
-            }
+            // материалы разобраны заранее в KeywordIndex
+            String image = kw.getPhoto();
+            List<String> docs = kw.getDocuments();
 
             if (image != null) sendSinglePhoto(chatId, image, rewardText);
             else if (!rewardText.isEmpty()) sendText(chatId, rewardText);
@@ -888,9 +1094,11 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
     private void sendSinglePhoto(long chatId, String ref, String caption) {
         try {
-            SendPhoto sp = new SendPhoto(String.valueOf(chatId), toInputFile(ref, true));
-            if (caption != null && !caption.isBlank()) sp.setCaption(caption);
-            execute(sp);
+            sendMaterial(chatId, ref, FileIdCache.PHOTO, in -> {
+                SendPhoto sp = new SendPhoto(String.valueOf(chatId), in);
+                if (caption != null && !caption.isBlank()) sp.setCaption(caption);
+                return execute(sp);
+            });
         } catch (Exception e) {
             LOG.warn("Фото не отправилось: {}", e.getMessage());
             if (caption != null && !caption.isBlank()) sendText(chatId, caption);
@@ -901,9 +1109,7 @@ public class SoulWayBot extends TelegramLongPollingBot {
     private void sendDocumentsIndividually(long chatId, List<String> docs) {
         for (String ref : docs) {
             try {
-                SendDocument sd = new SendDocument(String.valueOf(chatId), toInputFile(ref, true));
-                execute(sd);
-                Thread.sleep(80);
+                sendMaterial(chatId, ref, FileIdCache.DOCUMENT, in -> execute(new SendDocument(String.valueOf(chatId), in)));
             } catch (Exception ex2) {
                 LOG.warn("Документ '{}' не отправился: {}", ref, ex2.getMessage());
                 sendText(chatId, "Материал: " + ref);
@@ -913,12 +1119,23 @@ public class SoulWayBot extends TelegramLongPollingBot {
 
     // ===== helpers =====
 
+    /** Вызов Bot API через SendScheduler: ждём своей очереди по лимитам и результата. */
+    private <T extends Serializable> T api(BotApiMethod<T> method) throws TelegramApiException {
+        return sender.execute(method.getMethod().toLowerCase(Locale.ROOT), chatKeyOf(method), () -> execute(method));
+    }
+
+    /** Лимит «в чат» применяем только к сообщениям; служебные вызовы — под общим лимитом. */
+    private static String chatKeyOf(BotApiMethod<?> method) {
+        if (method instanceof SendMessage) return ((SendMessage) method).getChatId();
+        return null;
+    }
+
     private void safeExec(BotApiMethod<?> method) {
-        try { execute(method); } catch (Exception e) { LOG.error("execute error", e); }
+        try { api(method); } catch (Exception e) { LOG.error("execute error", e); }
     }
 
     private void sendText(long id, String text) {
-        try { execute(new SendMessage(String.valueOf(id), text)); }
+        try { api(new SendMessage(String.valueOf(id), text)); }
         catch (Exception e) { LOG.error("sendText error", e); }
     }
 
@@ -928,7 +1145,7 @@ public class SoulWayBot extends TelegramLongPollingBot {
             ac.setCallbackQueryId(callbackId);
             ac.setText(text);
             ac.setShowAlert(false);
-            execute(ac);
+            api(ac);
         } catch (Exception e) { LOG.error("answerCallback error", e); }
     }
 
@@ -937,23 +1154,80 @@ public class SoulWayBot extends TelegramLongPollingBot {
         catch (Exception e) { return s; }
     }
 
-    private static InputFile toInputFile(String ref, boolean tryLocalFirst) {
+    /** Отправка с конкретным InputFile (для повторной отправки по file_id). */
+    private interface MaterialSend {
+        Message send(InputFile in) throws TelegramApiException;
+    }
+
+    /**
+     * Локальный файл шлём по кэшированному file_id, если он есть и файл не менялся;
+     * иначе загружаем и запоминаем file_id из ответа. URL и готовые file_id — как раньше.
+     */
+    private Message sendMaterial(long chatId, String ref, String kind, MaterialSend send) throws TelegramApiException {
+        String chatKey = String.valueOf(chatId);
+        String method = "send" + kind; // имена методов в метриках — в нижнем регистре, как sendmessage
+        File local = resolveLocalFile(ref, true);
+        if (local == null || !local.isFile()) {
+            InputFile in = toInputFile(ref, true);
+            return sender.execute(method, chatKey, () -> send.send(in));
+        }
+
+        String cached = fileIds.lookup(local, kind);
+        if (cached != null) {
+            try {
+                return sender.execute(method, chatKey, () -> send.send(new InputFile(cached)));
+            } catch (TelegramApiRequestException e) {
+                if (e.getErrorCode() == null || e.getErrorCode() != 400) throw e;
+                // file_id больше не принимается (например, другой бот/токен) — загружаем заново
+                LOG.info("cached file_id rejected for {}: {}", local, e.getMessage());
+                fileIds.forget(local, kind);
+            }
+        }
+        Message sent = sender.execute(method, chatKey, local.length(), () -> send.send(new InputFile(local, local.getName())));
+        fileIds.remember(local, kind, uploadedFileId(sent, kind));
+        return sent;
+    }
+
+    private static String uploadedFileId(Message m, String kind) {
+        if (m == null) return null;
+        switch (kind) {
+            case FileIdCache.PHOTO: {
+                List<PhotoSize> sizes = m.getPhoto();
+                return (sizes == null || sizes.isEmpty()) ? null : sizes.get(sizes.size() - 1).getFileId();
+            }
+            case FileIdCache.VIDEO:
+                return m.getVideo() != null ? m.getVideo().getFileId() : null;
+            default:
+                return m.getDocument() != null ? m.getDocument().getFileId() : null;
+        }
+    }
+
+    /** Локальный файл для ссылки на материал (files/..., путь или имя в FILES_ROOT) либо null. */
+    private static File resolveLocalFile(String ref, boolean tryLocalFirst) {
         String v = safeTrim(ref);
-        if (v.isEmpty()) return new InputFile(v);
+        if (v.isEmpty()) return null;
 
         if (v.startsWith("files/") || v.startsWith("/files/")) {
             String tail = v.startsWith("/files/") ? v.substring("/files/".length()) : v.substring("files/".length());
-            File local = new File(FILES_ROOT + tail);
-            return new InputFile(local, local.getName());
+            return new File(FILES_ROOT + tail);
         }
 
         File f = new File(v);
-        if (tryLocalFirst && f.exists() && f.isFile()) return new InputFile(f, f.getName());
+        if (tryLocalFirst && f.exists() && f.isFile()) return f;
 
         if (!v.startsWith("http://") && !v.startsWith("https://") && !v.contains("/")) {
             File local = new File(FILES_ROOT + v);
-            if (local.exists() && local.isFile()) return new InputFile(local, local.getName());
+            if (local.exists() && local.isFile()) return local;
         }
+        return null;
+    }
+
+    private static InputFile toInputFile(String ref, boolean tryLocalFirst) {
+        String v = safeTrim(ref);
+        if (v.isEmpty()) return new InputFile(v);
+
+        File local = resolveLocalFile(v, tryLocalFirst);
+        if (local != null) return new InputFile(local, local.getName());
 
         if (v.startsWith("http://") || v.startsWith("https://")) return new InputFile(normalizeUrl(v));
         return new InputFile(v);
@@ -969,14 +1243,17 @@ public class SoulWayBot extends TelegramLongPollingBot {
     }
 
     private boolean isSubscribedToChannel(long userId) {
+        Boolean cached = channelMembers.get(userId);
+        if (cached != null) return cached;
         try {
             GetChatMember req = new GetChatMember();
             req.setChatId("@" + CHANNEL_ID);
             req.setUserId(userId);
-            ChatMember cm = execute(req);
+            ChatMember cm = api(req);
             if (cm == null) return false;
-            String status = cm.getStatus();
-            return !"left".equalsIgnoreCase(status) && !"kicked".equalsIgnoreCase(status);
+            boolean member = MembershipCache.isMemberStatus(cm.getStatus());
+            channelMembers.put(userId, member);
+            return member;
         } catch (Exception e) {
             LOG.warn("getChatMember failed: {}", e.getMessage());
             return false;
@@ -987,17 +1264,4 @@ public class SoulWayBot extends TelegramLongPollingBot {
     private static String safeTrim(String s) { return s == null ? "" : s.trim(); }
     private static int safeParseInt(String s, int def) { try { return Integer.parseInt(s.trim()); } catch (Exception e){ return def; } }
 
-    private static boolean isImageSpec(String s) {
-        if (s == null) return false;
-        String v = s.trim().toLowerCase(Locale.ROOT);
-        if (v.startsWith("img:")) return true;
-        return v.endsWith(".jpg") || v.endsWith(".jpeg") || v.endsWith(".png")
-                || v.endsWith(".webp") || v.endsWith(".heic");
-    }
-    private static String stripImgPrefix(String s) {
-        if (s == null) return null;
-        String v = s.trim();
-        if (v.toLowerCase(Locale.ROOT).startsWith("img:")) return v.substring(4).trim();
-        return v;
-    }
 }
\ No newline at end of file
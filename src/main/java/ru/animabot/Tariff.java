@@ -1,25 +1,36 @@
 package ru.animabot;
 
+/** Строка таблицы tariffs: кнопка в меню тарифов и продукт в платёжной форме Prodamus. */
 public class Tariff {
     private int id;
-    private String name;
-    private String price;
+    private String name;          // лейбл кнопки, «1 МЕС • 1299 ₽»
+    private String productName;   // products[0][name] в ссылке; по нему же вебхук узнаёт тариф
+    private long priceKopecks;
     private int periodDays;
     private String payUrl;
 
     public Tariff() {}
-    public Tariff(int id, String name, String price, int periodDays, String payUrl) {
-        this.id = id; this.name = name; this.price = price; this.periodDays = periodDays; this.payUrl = payUrl;
+    public Tariff(int id, String name, String productName, long priceKopecks, int periodDays, String payUrl) {
+        this.id = id; this.name = name; this.productName = productName;
+        this.priceKopecks = priceKopecks; this.periodDays = periodDays; this.payUrl = payUrl;
     }
 
     public int getId() { return id; }
     public void setId(int id) { this.id = id; }
     public String getName() { return name; }
     public void setName(String name) { this.name = name; }
-    public String getPrice() { return price; }
-    public void setPrice(String price) { this.price = price; }
+    public String getProductName() { return productName; }
+    public void setProductName(String productName) { this.productName = productName; }
+    public long getPriceKopecks() { return priceKopecks; }
+    public void setPriceKopecks(long priceKopecks) { this.priceKopecks = priceKopecks; }
     public int getPeriodDays() { return periodDays; }
     public void setPeriodDays(int periodDays) { this.periodDays = periodDays; }
     public String getPayUrl() { return payUrl; }
     public void setPayUrl(String payUrl) { this.payUrl = payUrl; }
-}
\ No newline at end of file
+
+    /** Цена в рублях для ссылки оплаты: «1299», с копейками — «1299.50». */
+    public String getPriceRub() {
+        long rub = priceKopecks / 100, kop = priceKopecks % 100;
+        return kop == 0 ? String.valueOf(rub) : rub + (kop < 10 ? ".0" : ".") + kop;
+    }
+}
@@ -0,0 +1,89 @@
+package ru.animabot;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Скомпилированные тарифы: цены и неизменная часть ссылок Prodamus готовы заранее,
+ * ссылка пользователя — это префикс + токен заказа + uid + хвост.
+ * Каталог неизменяем и строится по версии {@link TariffIndex} (новая — после правки тарифов);
+ * готовые ссылки пользователя лежат в LRU каталога, то есть ключ — (userId, версия тарифов).
+ * Результат побайтно совпадает с прежней сборкой ссылки через карту параметров (эталон — TariffLinkBench).
+ */
+public final class TariffCatalog {
+
+    private static final String DEFAULT_BASE_URL = "https://soulway.payform.ru/";
+
+    private final long version;
+    private final List<Tariff> tariffs;
+    private final String linkSecret;
+    private final String[] linkPrefix;  // base?do=pay&order_num=
+    private final String[] tokenTail;   // %3A<days>%3A — после uid в токене
+    private final String[] payloadTail; // :<days> — подписываемая часть после uid
+    private final String[] linkSuffix;  // &products[0][price]=...&sum=...
+    private final Map<Long, List<String>> links;
+
+    /** Кнопки — в порядке index.all(); payUrl тарифа — базовая ссылка платёжной формы. */
+    TariffCatalog(TariffIndex index, String linkSecret, int cacheSize) {
+        this.version = index.version();
+        this.tariffs = index.all();
+        this.linkSecret = linkSecret;
+        int n = tariffs.size();
+        linkPrefix = new String[n];
+        tokenTail = new String[n];
+        payloadTail = new String[n];
+        linkSuffix = new String[n];
+        for (int i = 0; i < n; i++) {
+            Tariff t = tariffs.get(i);
+            String base = (t.getPayUrl() == null || t.getPayUrl().isBlank()) ? DEFAULT_BASE_URL : t.getPayUrl().trim();
+            // порядок параметров прежний: do, order_num, customer_extra, products, sum
+            linkPrefix[i] = base + (base.contains("?") ? '&' : '?') + "do=pay&order_num=swb%3A";
+            tokenTail[i] = "%3A" + t.getPeriodDays() + "%3A";
+            payloadTail[i] = ":" + t.getPeriodDays();
+            String name = t.getProductName() == null ? "" : t.getProductName();
+            linkSuffix[i] = "&products[0][price]=" + t.getPriceRub() +
+                    "&products[0][quantity]=1" +
+                    "&products[0][name]=" + URLEncoder.encode(name, StandardCharsets.UTF_8) +
+                    "&sum=" + t.getPriceRub();
+        }
+        this.links = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, List<String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    public long version() { return version; }
+
+    public List<Tariff> tariffs() { return tariffs; }
+
+    /** Ссылки оплаты пользователя — по одной на тариф, в порядке {@link #tariffs()}. */
+    public List<String> linksFor(long userId) {
+        synchronized (links) {
+            List<String> cached = links.get(userId);
+            if (cached != null) return cached;
+        }
+        List<String> built = build(userId);
+        synchronized (links) {
+            links.put(userId, built);
+        }
+        return built;
+    }
+
+    private List<String> build(long userId) {
+        String uid = String.valueOf(userId);
+        String[] out = new String[tariffs.size()];
+        for (int i = 0; i < out.length; i++) {
+            String hmac = SoulWayBot.hmacHex(uid + payloadTail[i], linkSecret);
+            out[i] = new StringBuilder(linkPrefix[i].length() + linkSuffix[i].length() + 128)
+                    .append(linkPrefix[i]).append(uid).append(tokenTail[i]).append(hmac)
+                    .append("&customer_extra=").append(uid)
+                    .append(linkSuffix[i])
+                    .toString();
+        }
+        return List.of(out);
+    }
+}
@@ -0,0 +1,117 @@
+package ru.animabot;
+
+import java.util.*;
+
+/**
+ * Неизменяемый индекс таблицы tariffs: список для клавиатуры (по id),
+ * цена в копейках → тариф и точное название продукта → тариф для вебхука Prodamus.
+ * При изменении строки строится новый индекс со следующей версией и подменяется целиком.
+ */
+public final class TariffIndex {
+
+    private static final TariffIndex EMPTY = new TariffIndex(0, Collections.emptyList());
+
+    private final long version;
+    private final List<Tariff> all;
+    private final Map<Long, Tariff> byPrice;
+    private final Map<String, Tariff> byProductName;
+
+    private TariffIndex(long version, List<Tariff> tariffs) {
+        List<Tariff> sorted = new ArrayList<>(tariffs);
+        sorted.sort(Comparator.comparingInt(Tariff::getId));
+        Map<Long, Tariff> price = new HashMap<>();
+        Map<String, Tariff> name = new HashMap<>();
+        for (Tariff t : sorted) {
+            // при совпадении цены или названия побеждает тариф с меньшим id
+            price.putIfAbsent(t.getPriceKopecks(), t);
+            if (t.getProductName() != null) name.putIfAbsent(t.getProductName().trim(), t);
+        }
+        this.version = version;
+        this.all = Collections.unmodifiableList(sorted);
+        this.byPrice = price;
+        this.byProductName = name;
+    }
+
+    static TariffIndex empty() { return EMPTY; }
+
+    static TariffIndex of(Collection<Tariff> tariffs) {
+        return new TariffIndex(1, new ArrayList<>(tariffs));
+    }
+
+    /** Новый индекс с добавленным/заменённым тарифом (по id). */
+    TariffIndex with(Tariff t) {
+        List<Tariff> next = new ArrayList<>(all);
+        next.removeIf(x -> x.getId() == t.getId());
+        next.add(t);
+        return new TariffIndex(version + 1, next);
+    }
+
+    /** Новый индекс без тарифа id. */
+    TariffIndex without(int id) {
+        List<Tariff> next = new ArrayList<>(all);
+        next.removeIf(x -> x.getId() == id);
+        return new TariffIndex(version + 1, next);
+    }
+
+    public long version() { return version; }
+
+    /** Тарифы по возрастанию id — в этом порядке идут кнопки. */
+    public List<Tariff> all() { return all; }
+
+    public Tariff get(int id) {
+        for (Tariff t : all) if (t.getId() == id) return t;
+        return null;
+    }
+
+    /** Тариф по сумме из вебхука («3599», «3 599.00», «1299,5»); null — такой цены нет. */
+    public Tariff byPrice(String sum) {
+        long kopecks = parseKopecks(sum);
+        return kopecks > 0 ? byPrice.get(kopecks) : null;
+    }
+
+    /** Тариф по точному названию продукта (products[0][name] из нашей ссылки). */
+    public Tariff byProductName(String productName) {
+        return productName == null ? null : byProductName.get(productName.trim());
+    }
+
+    public int size() { return all.size(); }
+
+    /**
+     * Сумма в копейках; -1 — не число. Последний «.» или «,» с одной-двумя цифрами после него —
+     * копейки, остальные пробелы, точки и запятые — разделители разрядов («3,599.00» → 359900).
+     */
+    static long parseKopecks(String s) {
+        if (s == null) return -1;
+        int start = 0, end = s.length();
+        while (start < end && Character.isWhitespace(s.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(s.charAt(end - 1))) end--;
+
+        int sep = -1;
+        for (int i = end - 1; i >= start && i >= end - 3; i--) {
+            char c = s.charAt(i);
+            if (c == '.' || c == ',') { sep = i; break; }
+            if (c < '0' || c > '9') return -1;
+        }
+
+        long rub = 0;
+        int digits = 0;
+        for (int i = start; i < (sep < 0 ? end : sep); i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 15) return -1;
+                rub = rub * 10 + (c - '0');
+            } else if (c != ' ' && c != '\u00A0' && c != '.' && c != ',') {
+                return -1;
+            }
+        }
+        if (digits == 0) return -1;
+
+        long kop = 0;
+        if (sep >= 0) {
+            int n = end - sep - 1;
+            if (n >= 1) kop = (s.charAt(sep + 1) - '0') * 10L;
+            if (n == 2) kop += s.charAt(sep + 2) - '0';
+        }
+        return rub * 100 + kop;
+    }
+}
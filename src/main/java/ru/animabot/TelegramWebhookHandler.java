@@ -0,0 +1,102 @@
+package ru.animabot;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Приём апдейтов Telegram через webhook (/webhook/telegram/&lt;secret&gt;).
+ * Запрос проверяется по заголовку X-Telegram-Bot-Api-Secret-Token, апдейт
+ * уходит в тот же конвейер, что и при long polling (onUpdateReceived → UpdateDispatcher),
+ * а Telegram сразу получает 200 — обработка идёт асинхронно.
+ */
+public class TelegramWebhookHandler implements HttpHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TelegramWebhookHandler.class);
+
+    public static final String CONTEXT_PREFIX = "/webhook/telegram/";
+    public static final String SECRET_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+
+    /** Апдейт Telegram заведомо меньше; больше — не от Telegram. */
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final SoulWayBot bot;
+    private final byte[] secret;
+
+    public TelegramWebhookHandler(SoulWayBot bot, String secret) {
+        this.bot = bot;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** secret_token Telegram: 1–256 символов A-Z, a-z, 0-9, _ и -; он же — часть пути. */
+    public static boolean isValidSecret(String s) {
+        return s != null && s.matches("[A-Za-z0-9_-]{1,256}");
+    }
+
+    @Override
+    public void handle(HttpExchange ex) throws IOException {
+        long t0 = System.nanoTime();
+        try {
+            if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
+                respond(ex, 405);
+                return;
+            }
+            JfrEvents.WebhookStage stage = JfrEvents.stage("telegram", "verify");
+            String header = ex.getRequestHeaders().getFirst(SECRET_HEADER);
+            boolean verified = header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+            stage.commit();
+            if (!verified) {
+                LOG.warn("[telegram] webhook with wrong secret token from {}", ex.getRemoteAddress());
+                respond(ex, 401);
+                return;
+            }
+            stage = JfrEvents.stage("telegram", "read");
+            byte[] raw = readLimited(ex.getRequestBody());
+            stage.commit();
+            if (raw == null) {
+                respond(ex, 413);
+                return;
+            }
+            Update update;
+            stage = JfrEvents.stage("telegram", "parse");
+            try {
+                update = MAPPER.readValue(raw, Update.class);
+                stage.commit();
+            } catch (IOException e) {
+                // Повтор не поможет — отвечаем 200, чтобы Telegram не слал тот же апдейт снова
+                LOG.warn("[telegram] unparsable update ({} bytes): {}", raw.length, e.getMessage());
+                respond(ex, 200);
+                return;
+            }
+            bot.onUpdateReceived(update);
+            respond(ex, 200);
+        } catch (Exception e) {
+            LOG.error("telegram webhook error", e);
+            respond(ex, 500);
+        } finally {
+            Metrics.WEBHOOKS.labels("telegram", "http_" + ex.getResponseCode()).observeSince(t0);
+        }
+    }
+
+    private static byte[] readLimited(InputStream in) throws IOException {
+        byte[] raw = in.readNBytes(MAX_BODY_BYTES + 1);
+        return raw.length > MAX_BODY_BYTES ? null : raw;
+    }
+
+    private static void respond(HttpExchange ex, int code) throws IOException {
+        ex.sendResponseHeaders(code, -1);
+        ex.close();
+    }
+}
@@ -0,0 +1,118 @@
+package ru.animabot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Параллельная обработка апдейтов: у каждого чата своя «дорожка» (очередь),
+ * апдейты одного чата выполняются строго по порядку, разные чаты — параллельно
+ * на виртуальных потоках. Медленный пользователь (GetChatMember, загрузка файлов)
+ * больше не задерживает остальных из той же пачки long polling.
+ * Если в дорожке уже ждут MAX_PENDING_PER_CHAT апдейтов, новые обычные сообщения отбрасываются.
+ * Нажатия кнопок не отбрасываем (без answerCallbackQuery у пользователя висит «часики»),
+ * chat_member — тоже (это учёт участников группы).
+ */
+public class UpdateDispatcher implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    private static final int MAX_PENDING_PER_CHAT = 10;
+
+    private static final class Lane {
+        final long key;
+        final ArrayDeque<Update> pending = new ArrayDeque<>();
+        boolean running;
+        boolean retired; // дорожка опустела и удалена из карты — в неё больше не пишем
+        Lane(long key) { this.key = key; }
+    }
+
+    private final Consumer<Update> handler;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public UpdateDispatcher(Consumer<Update> handler) {
+        this.handler = handler;
+    }
+
+    public void dispatch(Update update) {
+        if (update == null) return;
+        long key = shardKey(update);
+        while (true) {
+            Lane lane = lanes.computeIfAbsent(key, Lane::new);
+            boolean start;
+            synchronized (lane) {
+                if (lane.retired) continue; // гонка с завершением дорожки — берём новую
+                if (update.hasMessage() && lane.pending.size() >= MAX_PENDING_PER_CHAT) {
+                    LOG.warn("chat {}: {} updates already pending, dropping update {}", key, lane.pending.size(), update.getUpdateId());
+                    return;
+                }
+                lane.pending.add(update);
+                queued.incrementAndGet();
+                start = !lane.running;
+                lane.running = true;
+            }
+            if (start) executor.execute(() -> drain(lane));
+            return;
+        }
+    }
+
+    private void drain(Lane lane) {
+        while (true) {
+            Update next;
+            synchronized (lane) {
+                next = lane.pending.poll();
+                if (next == null) {
+                    lane.running = false;
+                    lane.retired = true;
+                    lanes.remove(lane.key, lane);
+                    return;
+                }
+            }
+            queued.decrementAndGet();
+            try {
+                handler.accept(next);
+            } catch (Exception e) {
+                LOG.error("Error processing update", e);
+            }
+        }
+    }
+
+    /** Апдейты, ждущие обработки во всех дорожках (gauge). */
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    /** Чаты, у которых сейчас есть незавершённые апдейты. */
+    public int activeChats() {
+        return lanes.size();
+    }
+
+    private static long shardKey(Update u) {
+        if (u.hasMessage()) return u.getMessage().getChatId();
+        if (u.hasCallbackQuery()) {
+            if (u.getCallbackQuery().getMessage() != null) return u.getCallbackQuery().getMessage().getChatId();
+            return u.getCallbackQuery().getFrom().getId();
+        }
+        if (u.hasChatMember() && u.getChatMember().getNewChatMember() != null
+                && u.getChatMember().getNewChatMember().getUser() != null) {
+            // изменения в канале/группе — по пользователю, чтобы не сериализовать весь канал
+            return u.getChatMember().getNewChatMember().getUser().getId();
+        }
+        return u.getUpdateId() != null ? u.getUpdateId() : 0L;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
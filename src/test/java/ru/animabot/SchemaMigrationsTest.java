@@ -0,0 +1,31 @@
+package ru.animabot;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Схема с нуля: все миграции применяются, и каждый запрос из HOT_QUERIES идёт по индексу. */
+class SchemaMigrationsTest {
+
+    @Test
+    void migratesEmptyDatabaseToLatestVersion() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            assertEquals(0, SchemaMigrations.migrate(conn));
+            assertEquals(SchemaMigrations.latestVersion(), SchemaMigrations.userVersion(conn));
+        }
+    }
+
+    @Test
+    void hotQueriesUseIndexes() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            SchemaMigrations.migrate(conn);
+            assertEquals(List.of(), SchemaMigrations.queriesWithoutIndex(conn),
+                    "EXPLAIN QUERY PLAN shows a full table scan");
+        }
+    }
+}